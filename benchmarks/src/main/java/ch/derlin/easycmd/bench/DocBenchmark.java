@@ -0,0 +1,65 @@
+package ch.derlin.easycmd.bench;
+
+import ch.derlin.easycmd.doc.CmdDoc;
+import ch.derlin.easycmd.doc.LevenshteinDistance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fuzzy matching of the commands: raw edit distance and typo resolution in {@link CmdDoc}.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocBenchmark {
+
+    // compiled: the index generated at build time; json: parsed from man.json at runtime
+    @Param({"compiled", "json"})
+    public String source;
+
+    private CmdDoc doc;
+
+    @Setup
+    public void setup() {
+        doc = source.equals("compiled") ? new CmdDoc() : new CmdDoc(CmdDoc.class.getResourceAsStream("/man.json"));
+    }
+
+    @Benchmark
+    public int distanceShort() {
+        return LevenshteinDistance.getDistance("shwopass", "showpass");
+    }
+
+    @Benchmark
+    public int distanceLong() {
+        return LevenshteinDistance.getDistance("insurance company account", "insurance compagny acount");
+    }
+
+    @Benchmark
+    public int distanceLongBounded() {
+        return LevenshteinDistance.getDistance("insurance company account", "insurance compagny acount", 2);
+    }
+
+    @Benchmark
+    public int distanceUnrelatedBounded() {
+        // gives up after a few lines
+        return LevenshteinDistance.getDistance("insurance company account", "facebook personal account", 2);
+    }
+
+    @Benchmark
+    public CmdDoc.CmdDescription betterMatchTypo() {
+        return doc.betterMatch("shwo", 2);
+    }
+
+    @Benchmark
+    public CmdDoc.CmdDescription betterMatchUnknown() {
+        return doc.betterMatch("facebook", 2);
+    }
+}
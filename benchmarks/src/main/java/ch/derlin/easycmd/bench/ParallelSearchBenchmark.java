@@ -0,0 +1,49 @@
+package ch.derlin.easycmd.bench;
+
+import ch.derlin.easycmd.accounts.AccountsMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential versus parallel full scans of {@link AccountsMap#find(String...)} (pattern too
+ * short for the trigram index) and {@link AccountsMap#findR(String)} (regex without literal), to locate the vault size
+ * from which the parallel search pays off ({@link AccountsMap#DEFAULT_PARALLEL_THRESHOLD}).
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelSearchBenchmark {
+
+    @Param({"1000", "5000", "20000", "100000", "500000"})
+    public int size;
+
+    @Param({"sequential", "parallel"})
+    public String mode;
+
+    private AccountsMap accounts;
+
+    @Setup
+    public void setup() {
+        accounts = Vaults.synthetic(size);
+        accounts.setParallelThreshold(mode.equals("parallel") ? 0 : Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public List<String> find() {
+        return accounts.find("ba");
+    }
+
+    @Benchmark
+    public List<String> findR() {
+        return accounts.findR(".*[a-z]+[0-9]+");
+    }
+}
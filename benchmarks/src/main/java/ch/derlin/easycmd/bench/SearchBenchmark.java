@@ -0,0 +1,120 @@
+package ch.derlin.easycmd.bench;
+
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.accounts.CompactAccountsMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searches and duplicate detection on vaults of growing size. The lazy indexes are built
+ * in the setup, so the numbers are the steady state of an interactive session.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class SearchBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private AccountsMap accounts, unindexed;
+    // what the agent keeps
+    private CompactAccountsMap compact;
+    private String existingName, typo;
+
+    @Setup
+    public void setup() {
+        accounts = Vaults.synthetic(size);
+        existingName = accounts.lastKey().toUpperCase();
+        accounts.find("warmup");
+        accounts.containsKeyLower("warmup");
+        accounts.closestNames("warmup", 0, 1);
+        // two edits away from an existing name
+        typo = existingName.substring(1, existingName.length() - 1) + "x";
+        // what a single lookup pays without the name index
+        unindexed = Vaults.synthetic(size);
+        compact = CompactAccountsMap.of(Vaults.synthetic(size));
+    }
+
+    @Benchmark
+    public List<String> findSelective() {
+        return accounts.find("bank", "user42");
+    }
+
+    @Benchmark
+    public List<String> findScoped() {
+        // same accounts as findSelective, without looking at the notes
+        return accounts.find("name:bank*", "pseudo:=user42");
+    }
+
+    @Benchmark
+    public List<String> findScopedShort() {
+        // too short for the index: full scan, on the names only
+        return accounts.find("name:zq");
+    }
+
+    @Benchmark
+    public List<String> findBroad() {
+        return accounts.find("mail");
+    }
+
+    @Benchmark
+    public List<String> findShortPattern() {
+        return accounts.find("zq");
+    }
+
+    @Benchmark
+    public List<String> findR() {
+        return accounts.findR("bank .* 4[0-9]*");
+    }
+
+    @Benchmark
+    public List<String> findRNoLiteral() {
+        // nothing to look up in the index: full scan
+        return accounts.findR(".*[0-9]{3}@.*");
+    }
+
+    @Benchmark
+    public List<String> findSelectiveCompact() {
+        return compact.find("bank", "user42");
+    }
+
+    @Benchmark
+    public List<String> findShortPatternCompact() {
+        return compact.find("zq");
+    }
+
+    @Benchmark
+    public boolean containsKeyLowerHitCompact() {
+        return compact.containsKeyLower(existingName);
+    }
+
+    @Benchmark
+    public boolean containsKeyLowerHit() {
+        return accounts.containsKeyLower(existingName);
+    }
+
+    @Benchmark
+    public boolean containsKeyLowerMiss() {
+        return accounts.containsKeyLower("no  such ACCOUNT");
+    }
+
+    @Benchmark
+    public List<String> closestNames() {
+        return accounts.closestNames(typo, AccountsMap.SUGGESTION_DISTANCE, AccountsMap.SUGGESTION_LIMIT);
+    }
+
+    @Benchmark
+    public List<String> closestNamesScan() {
+        return unindexed.closestNamesOnce(typo, AccountsMap.SUGGESTION_DISTANCE, AccountsMap.SUGGESTION_LIMIT);
+    }
+}
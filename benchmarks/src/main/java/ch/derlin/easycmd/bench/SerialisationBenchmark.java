@@ -0,0 +1,88 @@
+package ch.derlin.easycmd.bench;
+
+import ch.derlin.easycmd.SerialisationManager;
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsCodec;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption and serialisation of whole vaults, to and from a temporary file.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class SerialisationBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"json", "binary", "json+deflate", "binary+deflate"})
+    public String format;
+
+    private AccountsMap accounts;
+    private SessionKey key;
+    private File vault, out;
+    private int flags;
+
+    @Setup
+    public void setup() throws Exception {
+        accounts = Vaults.synthetic(size);
+        // the key is derived once per session, not per save
+        key = new SessionKey(PASSWORD);
+        key.derive();
+        vault = File.createTempFile("easycmd-bench", ".data");
+        out = File.createTempFile("easycmd-bench", ".out");
+        flags = (format.startsWith("binary") ? VaultHeader.FLAG_BINARY : 0)
+                | (format.endsWith("+deflate") ? VaultHeader.FLAG_DEFLATE : 0);
+        accounts.setFormat(flags);
+        accounts.save(vault.getPath(), key);
+    }
+
+    @TearDown
+    public void tearDown() {
+        vault.delete();
+        out.delete();
+    }
+
+    @Benchmark
+    public void serialize() throws IOException {
+        SerialisationManager.serializeArray(new ArrayList<>(accounts.values()), AccountsCodec.INSTANCE,
+                new FileOutputStream(out), key, flags);
+    }
+
+    @Benchmark
+    public List<Account> deserialize() throws Exception {
+        List<Account> list = new ArrayList<>();
+        SerialisationManager.deserializeArray(vault.getPath(), key, Account.class, AccountsCodec.INSTANCE, list::add);
+        return list;
+    }
+
+    @Benchmark
+    public void toEncryptedFile() throws IOException {
+        AccountsMap.toEncryptedFile(out.getPath(), key, accounts.values(), flags);
+    }
+
+    @Benchmark
+    public AccountsMap fromEncryptedFile() throws Exception {
+        return AccountsMap.fromEncryptedFile(vault.getPath(), key);
+    }
+}
@@ -0,0 +1,74 @@
+package ch.derlin.easycmd.bench;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.accounts.AccountsSnapshot;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the versions of {@link AccountsMap#snapshot()}: taking a snapshot versus copying the accounts
+ * (what a full save did), and a mutation with and without the versions kept up to date.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class SnapshotBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int size;
+
+    private AccountsMap versioned, plain;
+    private String[] names;
+    private Random random;
+    private int next;
+
+    @Setup
+    public void setup() {
+        versioned = Vaults.synthetic(size);
+        versioned.snapshot();
+        plain = Vaults.synthetic(size);
+        names = plain.keySet().toArray(new String[0]);
+        random = new Random(Vaults.SEED);
+    }
+
+    @Benchmark
+    public AccountsSnapshot snapshot() {
+        return versioned.snapshot();
+    }
+
+    @Benchmark
+    public List<Account> copyValues() {
+        return new ArrayList<>(plain.values());
+    }
+
+    @Benchmark
+    public Account replaceVersioned() {
+        return replace(versioned);
+    }
+
+    @Benchmark
+    public Account replacePlain() {
+        return replace(plain);
+    }
+
+    // replace an account by a modified copy, as an edit does
+    private Account replace(AccountsMap accounts) {
+        String name = names[random.nextInt(names.length)];
+        Account updated = accounts.get(name).copy();
+        updated.notes = "edit " + next++;
+        accounts.remove(name);
+        return accounts.put(updated.name, updated);
+    }
+}
@@ -0,0 +1,107 @@
+package ch.derlin.easycmd.bench;
+
+import ch.derlin.easycmd.SingleShot;
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
+import ch.derlin.easycmd.doc.CmdDoc;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first result of the one-shot lookup ({@link SingleShot}), measured once per fresh JVM
+ * (class loading and JIT included, JVM boot excluded).
+ * <p>
+ * The vaults are written to the temp directory by the warmup fork and reused by the measured ones,
+ * so that the measured forks load none of the classes ahead of the lookup. The KDF work factor is
+ * a parameter: with the default one, the key derivation dominates. With the blocks format, a lookup
+ * by name decrypts a single block instead of the whole vault.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 10, warmups = 1, jvmArgs = {"-Xmx4g"})
+public class StartupBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Param({"1000", "600000"})
+    public int kdfIterations;
+
+    @Param({"json", "blocks"})
+    public String format;
+
+    private String vault, name, term;
+    private final PrintStream devNull = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+
+    @Setup
+    public void setup() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        File file = new File(dir, String.format("easycmd-startup-%d-%d-%s.data", size, kdfIterations, format));
+        File names = new File(file.getPath() + ".name");
+        if (!file.exists() || !names.exists()) create(file, names);
+
+        // plain file reading only: nothing from easycmd is loaded before the measurement
+        String[] lookup = new String(Files.readAllBytes(names.toPath()), StandardCharsets.UTF_8).split("\n");
+        vault = file.getPath();
+        name = lookup[0];
+        term = lookup[1];
+    }
+
+    @Benchmark
+    public int getByName() {
+        return SingleShot.run(new String[]{"get", "pass", name, "-f", vault, "-p", PASSWORD}, devNull, devNull);
+    }
+
+    @Benchmark
+    public int getBySearch() {
+        return SingleShot.run(new String[]{"get", "pass", term, "-f", vault, "-p", PASSWORD}, devNull, devNull);
+    }
+
+    @Benchmark
+    public CmdDoc loadDoc() {
+        // what the interactive mode no longer pays before the first command
+        return new CmdDoc(CmdDoc.class.getResourceAsStream("/man.json"));
+    }
+
+    @Benchmark
+    public CmdDoc loadDocCompiled() {
+        // what EasyCmd does now: the documentation is compiled into CmdIndex
+        return new CmdDoc();
+    }
+
+    private void create(File file, File names) throws Exception {
+        AccountsMap accounts = Vaults.synthetic(size);
+        SessionKey key = new SessionKey(PASSWORD, Kdf.PBKDF2_SHA256, kdfIterations);
+        key.derive();
+        accounts.setFormat(format.equals("blocks") ? VaultHeader.FLAG_BLOCKS : 0);
+        accounts.save(file.getPath(), key);
+
+        // an account in the middle, found by its name and by its (unique) random word
+        Account account = accounts.get(accounts.keys().get(size / 2));
+        String lookup = account.name + "\n" + account.name.split(" ")[1] + "\n";
+        Files.write(names.toPath(), lookup.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,54 @@
+package ch.derlin.easycmd.bench;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsMap;
+
+import java.util.Random;
+
+/**
+ * Synthetic vaults for the benchmarks. The content only depends on the size and the seed,
+ * so that runs are comparable.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class Vaults {
+
+    public static final long SEED = 42;
+
+    private static final String[] WORDS = {
+            "mail", "bank", "shop", "forum", "cloud", "git", "work", "home", "travel", "games",
+            "news", "music", "video", "school", "health", "insurance", "phone", "wifi", "vpn", "server"
+    };
+    private static final String[] DOMAINS = {"gmail.com", "example.org", "hotmail.com", "derlin.ch"};
+
+    public static AccountsMap synthetic(int size) {
+        return synthetic(size, SEED);
+    }
+
+    public static AccountsMap synthetic(int size, long seed) {
+        Random random = new Random(seed);
+        AccountsMap accounts = new AccountsMap();
+        for (int i = 0; i < size; i++) {
+            Account a = account(random, i);
+            accounts.put(a.name, a);
+        }//end for
+        return accounts;
+    }
+
+    public static Account account(Random random, int i) {
+        Account a = new Account();
+        String word = WORDS[random.nextInt(WORDS.length)];
+        a.name = String.format("%s %s %d", word, Long.toString(random.nextLong() & 0xffffff, 36), i);
+        a.pseudo = "user" + random.nextInt(10_000);
+        a.email = a.pseudo + "@" + DOMAINS[random.nextInt(DOMAINS.length)];
+        a.setPassword(Long.toString(random.nextLong(), 36));
+        a.notes = random.nextInt(4) == 0 ? "" :
+                String.format("security question: %s. created for the %s account, see %s",
+                        WORDS[random.nextInt(WORDS.length)], word, Long.toHexString(random.nextLong()));
+        a.creationDate = "2017-02-16T10:00:00";
+        a.modificationDate = "2017-02-16T10:00:00";
+        return a;
+    }
+}
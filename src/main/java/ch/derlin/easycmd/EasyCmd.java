@@ -1,22 +1,28 @@
 package ch.derlin.easycmd;
 
 import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsJournal;
 import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.accounts.BackgroundSaver;
+import ch.derlin.easycmd.accounts.ResultCursor;
+import ch.derlin.easycmd.agent.Agent;
+import ch.derlin.easycmd.agent.AgentClient;
+import ch.derlin.easycmd.console.BatchConsole;
 import ch.derlin.easycmd.console.Console;
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
 import ch.derlin.easycmd.doc.CmdDoc;
+import com.google.gson.JsonObject;
 import jline.console.completer.*;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 
-import java.awt.*;
-import java.awt.datatransfer.Clipboard;
-import java.awt.datatransfer.StringSelection;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * date: 15.02.17
@@ -28,21 +34,41 @@ public class EasyCmd {
     // algo for the deserialisation of data
     private static final String CRYPTO_ALGORITHM = "aes-128-cbc";
     private AccountsMap accounts;
-    private List<String> results;
+    private AccountsJournal journal;
+    private BackgroundSaver saver;
+    private ResultCursor results;
+    // paging of the results
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private int pageSize = DEFAULT_PAGE_SIZE, page;
     private Console console;
 
     private String filepath;
     private String pass;
+    private SessionKey key;
+    private int kdfIterations;
+
+    // batch mode: saves are deferred to the end of the script
+    private boolean batch, stopped, unsaved;
 
     @FunctionalInterface
     interface Commander {
         void apply(String command, String[] args);
     }
 
+    @FunctionalInterface
+    interface JournalEntry {
+        void apply(AccountsJournal journal) throws IOException;
+    }
+
     private Map<String, Commander> commandMap;
     private CmdDoc doc;
 
     public static void main(String[] args) throws Exception {
+        // one-shot lookup: skip the interactive stack altogether
+        if (args.length > 0 && args[0].equals(SingleShot.COMMAND)) {
+            System.exit(SingleShot.run(args, System.out, System.err));
+            return;
+        }
         new EasyCmd(args);
         //Console c = new Console();c.test();
 
@@ -63,6 +89,16 @@ public class EasyCmd {
         options.addOption("nocolor", "turn off the coloring in prompts");
         options.addOption("e", "encrypt", true, "encrypt the file given by -f and stop.");
         options.addOption("d", "decrypt", true, "decrypt the file given by -f and stop.");
+        options.addOption("k", "kdf-iterations", true, "the work factor of the key derivation for new keys (default "
+                + Kdf.PBKDF2_SHA256.defaultWorkFactor() + ")");
+        options.addOption("n", "page-size", true, "the number of results printed at once (default " + DEFAULT_PAGE_SIZE + ")");
+        options.addOption("b", "batch", true, "run the commands of the script (- for stdin) and stop. " +
+                "The results are printed as json lines, the changes saved once at the end.");
+        options.addOption("agent", "keep the file given by -f decrypted and answer the queries of the clients (see -q).");
+        options.addOption("idle", true, "the number of minutes without queries after which the agent locks itself (default "
+                + TimeUnit.MILLISECONDS.toMinutes(Agent.DEFAULT_IDLE_TIMEOUT) + ")");
+        options.addOption("q", "query", true, "send the query (e.g. \"get pass my bank\") to the agent of the file given by -f, " +
+                "print the json response and stop.");
 
         // parse the command line arguments
         CommandLine line = new DefaultParser().parse(options, args);
@@ -74,26 +110,58 @@ public class EasyCmd {
             System.exit(0);
         }
 
+        // client of an agent: no console, no decryption
+        if (line.hasOption("query")) {
+            System.exit(query(line.getOptionValue("file"), line.getOptionValue("pass"), line.getOptionValue("query")));
+        }
 
-        console = new Console(line.hasOption("nocolor"));
+        batch = line.hasOption("batch");
+        console = batch ? new BatchConsole(openScript(line.getOptionValue("batch")), System.out) :
+                new Console(line.hasOption("nocolor"));
         filepath = line.getOptionValue("file");
         pass = line.getOptionValue("pass", "");
+        kdfIterations = Integer.parseInt(line.getOptionValue("kdf-iterations", "" + Kdf.PBKDF2_SHA256.defaultWorkFactor()));
+        try {
+            Kdf.PBKDF2_SHA256.checkWorkFactor(kdfIterations);
+        } catch (IllegalArgumentException e) {
+            console.error("%s", e.getMessage());
+            System.exit(1);
+        }
+        // scripts get all the results at once, unless asked otherwise
+        int defaultPageSize = batch ? Integer.MAX_VALUE : DEFAULT_PAGE_SIZE;
+        pageSize = Math.max(1, Integer.parseInt(line.getOptionValue("page-size", "" + defaultPageSize)));
+        saver = new BackgroundSaver(e -> console.error("error saving file: %s", e.getMessage()));
 
         boolean fileExists = new File(filepath).exists();
+        if (line.hasOption("agent")) {
+            if (!fileExists) {
+                console.error("the file '%s' does not exist", filepath);
+                System.exit(1);
+            }
+            long idle = line.hasOption("idle") ?
+                    TimeUnit.MINUTES.toMillis(Long.parseLong(line.getOptionValue("idle"))) : Agent.DEFAULT_IDLE_TIMEOUT;
+            serve(idle);
+        }
+
         if (fileExists) {
             if (line.hasOption("encrypt")) {
                 // encrypt and quit
                 String encryptPath = line.getOptionValue("encrypt");
                 loadFromFile("encrypt", encryptPath);
-                System.exit(accounts == null ? 1 : 0);
+                exit(accounts == null ? 1 : 0);
             } else {
                 // decrypt file
                 try {
                     while (pass.isEmpty()) pass = console.readPassword("password> ", "");
-                    accounts = AccountsMap.fromEncryptedFile(filepath, pass);
+                    key = newSessionKey();
+                    accounts = AccountsMap.fromEncryptedFile(filepath, key);
+                    journal = AccountsJournal.open(filepath, key, accounts, saver);
+                    for (String warning : journal.getWarnings()) console.warn("%s", warning);
+                    // legacy file or other kdf parameters: derive the session key now rather than on the first save
+                    key.derive();
                 } catch (SerialisationManager.WrongCredentialsException e) {
-                    System.out.println("Error: wrong credentials");
-                    System.exit(0);
+                    console.error("wrong credentials");
+                    exit(batch ? 1 : 0);
                 }
             }
 
@@ -107,11 +175,14 @@ public class EasyCmd {
             // get a new password (confirm to avoid typing errors,
             // since it is not recoverable)
             if (pass.isEmpty()) {
-                console.println("Choose a password. Ensure it is a strong one and don't forget it, it is not recoverable.");
+                console.info("Choose a password. Ensure it is a strong one and don't forget it, it is not recoverable.");
                 pass = getNewPass();
             }
             // creat empty
             accounts = new AccountsMap();
+            key = newSessionKey();
+            key.derive();
+            journal = AccountsJournal.create(filepath, key, accounts, saver);
         }
 
         // decrypt and quit
@@ -120,10 +191,12 @@ public class EasyCmd {
             System.exit(0);
         }
 
-        results = accounts.keys();
+        results = accounts.all();
 
         commandMap = new TreeMap<>();
         commandMap.put("find", this::findAll);
+        commandMap.put("next", this::nextPage);
+        commandMap.put("prev", this::prevPage);
         commandMap.put("show", this::show);
         commandMap.put("showpass", this::showPass);
         commandMap.put("copy", this::copy);
@@ -134,12 +207,16 @@ public class EasyCmd {
 
         commandMap.put("load", this::loadFromFile);
         commandMap.put("dump", this::dumpToFile);
+        commandMap.put("migrate", this::migrate);
 
 
         commandMap.put("help", this::helpOrMan);
         commandMap.put("man", this::helpOrMan);
 
-        commandMap.put("exit", (c, a) -> System.exit(1));
+        commandMap.put("exit", (c, a) -> {
+            if (batch) stopped = true;
+            else exit(1);
+        });
 
         // shortcuts
         commandMap.put("pass", (c, s) -> {
@@ -148,12 +225,26 @@ public class EasyCmd {
             copy("copy", (String[]) list.toArray(new String[0]));
         });
 
+        if (batch) {
+            runScript();
+        } else {
+            addCompleters();
+            interpreter();
+        }
+
+    }//end main
+
+    private void addCompleters() {
 
         List<Completer> completors = new LinkedList<>();
         StringsCompleter fieldsCompleter = new StringsCompleter("name", "pseudo", "notes", "email");
+        StringsCompleter queryCompleter = new StringsCompleter("name:", "pseudo:", "notes:", "email:",
+                "created:", "modified:", "OR", "NOT");
         completors.add(
                 new AggregateCompleter(
-                        new ArgumentCompleter(new StringsCompleter("find"), fieldsCompleter, new NullCompleter()),
+                        new ArgumentCompleter(new StringsCompleter("find"), queryCompleter, new NullCompleter()),
+                        new ArgumentCompleter(new StringsCompleter("next"), new NullCompleter()),
+                        new ArgumentCompleter(new StringsCompleter("prev"), new NullCompleter()),
                         new ArgumentCompleter(new StringsCompleter("show"), new NullCompleter()),
                         new ArgumentCompleter(new StringsCompleter("showpass"), new NullCompleter()),
                         new ArgumentCompleter(new StringsCompleter("copy"), fieldsCompleter),
@@ -162,6 +253,8 @@ public class EasyCmd {
                         new ArgumentCompleter(new StringsCompleter("add"), new NullCompleter()),
                         new ArgumentCompleter(new StringsCompleter("load"), new FileNameCompleter()),
                         new ArgumentCompleter(new StringsCompleter("dump"), new FileNameCompleter()),
+                        new ArgumentCompleter(new StringsCompleter("migrate"), new StringsCompleter("json", "binary", "blocks"),
+                                new StringsCompleter("deflate"), new NullCompleter()),
                         new ArgumentCompleter(new StringsCompleter("exit"), new NullCompleter()),
                         new ArgumentCompleter(new StringsCompleter("pass"), new NullCompleter()),
                         new ArgumentCompleter(new StringsCompleter("man"), new NullCompleter()),
@@ -172,13 +265,7 @@ public class EasyCmd {
         for (Completer c : completors) {
             console.addCompleter(c);
         }
-
-        InputStream stream = getClass().getResourceAsStream("/man.json");
-        doc = new CmdDoc(stream);
-
-        interpreter();
-
-    }//end main
+    }
 
 
     public void interpreter() throws IOException {
@@ -195,16 +282,79 @@ public class EasyCmd {
 
     }
 
+    public void runScript() throws IOException {
+        BatchConsole script = (BatchConsole) console;
+        String line;
+        while (!stopped && (line = script.readCommand()) != null) {
+            doCommand(line.split(" +"));
+        }//end while
+
+        // commit all the changes at once
+        if (unsaved) {
+            script.begin("save");
+            try {
+                journal.saveAll();
+            } catch (IOException e) {
+                console.error("error saving file.");
+            }
+        }
+        exit(script.errors() > 0 ? 1 : 0);
+    }
+
+    public void serve(long idleTimeout) throws IOException {
+        while (pass.isEmpty()) pass = console.readPassword("password> ", "");
+        try (Agent agent = new Agent(filepath, pass, idleTimeout)) {
+            console.info("agent listening on port %d, see '%s'.", agent.getPort(), filepath + Agent.EXTENSION);
+            agent.serve();
+        } catch (SerialisationManager.WrongCredentialsException e) {
+            console.error("wrong credentials");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    public static int query(String filepath, String pass, String query) {
+        String[] split = query.trim().split(" +");
+        String cmd = split[0].toLowerCase();
+        String[] args = Arrays.copyOfRange(split, 1, split.length);
+
+        try (AgentClient client = new AgentClient(filepath)) {
+            JsonObject response;
+            if (cmd.equals("unlock")) {
+                response = client.unlock(pass != null ? pass : readPassword());
+            } else {
+                response = client.send(cmd, args);
+                if (AgentClient.is(response, Agent.LOCKED)) {
+                    // unlock and retry
+                    if (pass == null) pass = readPassword();
+                    if (pass != null) {
+                        JsonObject unlocked = client.unlock(pass);
+                        response = AgentClient.is(unlocked, Agent.OK) ? client.send(cmd, args) : unlocked;
+                    }
+                }
+            }
+            System.out.println(response);
+            return AgentClient.is(response, Agent.OK) ? 0 : 1;
+
+        } catch (IOException e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("status", Agent.ERROR);
+            error.addProperty("message", e.getMessage());
+            System.out.println(error);
+            return 1;
+        }
+    }
+
     public void doCommand(String[] split) {
         String cmd = split[0].toLowerCase();
         String[] args = Arrays.copyOfRange(split, 1, split.length);
         if (commandMap.containsKey(cmd)) {
             commandMap.get(cmd).apply(cmd, args);
         } else {
-            CmdDoc.CmdDescription bestMatch = doc.betterMatch(cmd, 2);
+            CmdDoc.CmdDescription bestMatch = doc().betterMatch(cmd, 2);
             if (bestMatch != null) {
                 String bestCmd = bestMatch.getName();
-                System.out.printf("unrecognized command. Assuming '%s'%n", bestCmd);
+                console.info("unrecognized command. Assuming '%s'", bestCmd);
                 commandMap.get(bestCmd).apply(bestCmd, args);
             } else {
                 console.info("unrecognized command. Assuming find.");
@@ -215,23 +365,42 @@ public class EasyCmd {
     }
 
     public void findAll(String cmd, String... args) {
-        List<String> newResults;
+        ResultCursor newResults;
         if (args.length < 1) {
-            newResults = accounts.keys();
+            newResults = accounts.all();
         } else {
-            newResults = accounts.find(args);
+            newResults = ResultCursor.of(accounts.find(args));
         }
         if (newResults.size() > 0) {
             results = newResults;
+            page = 0;
             printResults();
         } else {
-            console.warn("not match.");
+            console.warn("not match.%s", didYouMean(args));
         }
     }
 
+    public void nextPage(String cmd, String... args) {
+        if ((page + 1) * pageSize >= results.size()) {
+            console.warn("no more results.");
+            return;
+        }
+        page++;
+        printResults();
+    }
+
+    public void prevPage(String cmd, String... args) {
+        if (page == 0) {
+            console.warn("already on the first page.");
+            return;
+        }
+        page--;
+        printResults();
+    }
+
     public void show(String cmd, String... args) {
         Account a = findOne(args);
-        if (a != null) a.show(console);
+        if (a != null) console.show(a);
     }
 
     public void copy(String cmd, String... args) {
@@ -249,7 +418,7 @@ public class EasyCmd {
             } else if (field.isEmpty()) {
                 console.warn("nothing to copy (empty field)");
             } else {
-                copy(field);
+                console.copyToClipboard(field);
                 console.info("%s for account '%s' copied to clipboard%n", fieldname, a.name);
             }
         }
@@ -267,18 +436,28 @@ public class EasyCmd {
                 return;
             }
 
-            if (!old.name.equals(nw.name) && accounts.containsKeyLower(nw.name)) {
+            // only a new name can clash: the map may hold names differing only by case
+            String existing = old.name.equals(nw.name) ? null : accounts.getKeyLower(nw.name);
+            if (existing != null && !existing.equals(old.name)) {
                 if (!console.confirm("   another account with this name already exists. override ?")) return;
+                accounts.remove(existing);
 
             } else {
                 // same name, ask for confirmation
                 if (!console.confirm("   save changes ?")) return;
+                existing = null;
             }
 
-            accounts.remove(old.name);
-            old.overrideWith(nw);
-            accounts.put(old.name, old);
-            save();
+            // replaced, not modified: the snapshots being saved keep the old version
+            String oldName = old.name, overridden = existing;
+            Account updated = old.copy();
+            updated.overrideWith(nw);
+            accounts.remove(oldName);
+            accounts.put(updated.name, updated);
+            save(j -> {
+                if (overridden != null) j.logRemove(overridden);
+                j.logPut(oldName, updated);
+            });
 
         } catch (IOException e) {
             console.error("error editing account.");
@@ -297,14 +476,16 @@ public class EasyCmd {
                 return;
             }
 
-            if (accounts.containsKeyLower(a.name)) {
+            String existing = accounts.getKeyLower(a.name);
+            if (existing != null) {
                 if (!console.confirm("   another account with this name already exists. override ?")) return;
+                accounts.remove(existing);
             } else {
                 if (!console.confirm("   Save changes?")) return;
             }
 
             accounts.put(a.name, a);
-            save();
+            save(j -> j.logPut(existing, a));
 
         } catch (IOException e) {
             console.error("error saving account.");
@@ -318,7 +499,7 @@ public class EasyCmd {
         try {
             if (console.confirm(String.format(" delete account '%s' ?", a.name))) {
                 accounts.remove(a.name);
-                save();
+                save(j -> j.logRemove(a.name));
             }
         } catch (IOException e) {
             console.error(e.getMessage());
@@ -329,11 +510,11 @@ public class EasyCmd {
         Account a = findOne(args);
         if (a == null) return;
 
-        if (a.password.isEmpty()) {
+        if (a.getPassword().isEmpty()) {
             console.warn("empty password.");
         } else {
-            console.showPassword(a.password);
-            System.out.println();
+            console.showPassword(a.getPassword());
+            if (!batch) System.out.println();
         }
     }
 
@@ -348,10 +529,12 @@ public class EasyCmd {
             accounts = AccountsMap.fromFile(filepath);
             filepath = to;
             if (pass.isEmpty()) pass = getNewPass();
-            save();
+            if (key == null) key = newSessionKey();
+            if (journal != null) journal.close();
+            journal = AccountsJournal.create(filepath, key, accounts, saver);
+            save(AccountsJournal::saveAll);
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.printf("Error loading json file '%s'%n", filepath);
+            console.error("error loading json file '%s': %s", filepath, e.getMessage());
         }
     }
 
@@ -383,29 +566,68 @@ public class EasyCmd {
         }
     }
 
-    private void save() {
+    public void migrate(String cmd, String... args) {
+        List<String> formats = Arrays.asList("json", "binary", "blocks");
+        if (args.length < 1 || args.length > 2 || !formats.contains(args[0])
+                || (args.length == 2 && !args[1].equals("deflate"))) {
+            console.error("invalid format. Usage: %s <json|binary|blocks> [deflate]", cmd);
+            return;
+        }
+        int format = args[0].equals("binary") ? VaultHeader.FLAG_BINARY
+                : args[0].equals("blocks") ? VaultHeader.FLAG_BLOCKS : 0;
+        if (args.length == 2) format |= VaultHeader.FLAG_DEFLATE;
+        if (format == accounts.getFormat()) {
+            console.warn("the file is already in %s format.", String.join(" ", args));
+            return;
+        }
+        accounts.setFormat(format);
+        save(AccountsJournal::saveAll);
+    }
+
+    private void save(JournalEntry entry) {
+        if (batch) {
+            // written once, at the end of the script
+            unsaved = true;
+            return;
+        }
         try {
-            accounts.save(filepath, pass);
+            entry.apply(journal);
             console.info("saved.");
         } catch (IOException e) {
             console.error("error saving file.");
         }
     }
 
+    private void exit(int status) {
+        try {
+            // wait for the background saves, if any
+            if (journal != null) journal.close();
+        } catch (IOException e) {
+            console.error("error saving file: %s", e.getMessage());
+        }
+        saver.close();
+        try {
+            if (batch) console.flush();
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+        System.exit(status);
+    }
+
     public void helpOrMan(String cmd, String[] args) {
         // no arguments, print the list of available commands
         if (args.length == 0) {
-            System.out.println(cmd.equals("man") ? doc.man() : doc.help());
+            console.info("%s", cmd.equals("man") ? doc().man() : doc().help());
         } else {
             // if a command name was specified, print its description
             String param = args[0];
-            CmdDoc.CmdDescription descr = doc.get(param);
+            CmdDoc.CmdDescription descr = doc().get(param);
 
             if (descr != null) {
-                System.out.println(descr.fullDescription());
+                console.info("%s", descr.fullDescription());
             } else {
                 // the command does not exist -> print the closest command name available
-                System.out.println(doc.help());
+                console.info("%s", doc().help());
             }
         }
 
@@ -434,6 +656,28 @@ public class EasyCmd {
         return true;
     }
 
+    private SessionKey newSessionKey() {
+        return new SessionKey(pass, Kdf.PBKDF2_SHA256, kdfIterations);
+    }
+
+    private CmdDoc doc() {
+        // only needed for help and typos: loaded on first use
+        if (doc == null) doc = new CmdDoc();
+        return doc;
+    }
+
+    private static Reader openScript(String path) throws IOException {
+        InputStream in = path.equals("-") ? System.in : new FileInputStream(path);
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    private static String readPassword() {
+        java.io.Console terminal = System.console();
+        if (terminal == null) return null;
+        char[] pass = terminal.readPassword("password> ");
+        return pass == null ? null : new String(pass);
+    }
+
     private String getNewPass() throws IOException {
         String pass1, pass2;
         while (true) {
@@ -448,17 +692,9 @@ public class EasyCmd {
     }
 
     private void printResults() {
-        int i = 0;
-        for (String name : results) {
-            System.out.printf("  [%d] %s%n", i++, name);
-        }//end for
-        System.out.printf(" %d results.%n", i);
-    }
-
-    private void copy(String s) {
-        StringSelection selection = new StringSelection(s);
-        Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-        clipboard.setContents(selection, selection);
+        int pages = (results.size() + pageSize - 1) / pageSize;
+        page = Math.max(0, Math.min(page, pages - 1));
+        console.printResults(results, page, pageSize);
     }
 
     private Account findOne(String... args) {
@@ -469,7 +705,7 @@ public class EasyCmd {
                 console.error("missing index");
                 return null;
             } else {
-                return accounts.isEmpty() ? null : accounts.get(results.get(0));
+                return results.isEmpty() ? null : result(0);
             }
         }
 
@@ -477,7 +713,7 @@ public class EasyCmd {
         try {
             int i = Integer.parseInt(args[0]);
             if (i >= 0 && i < results.size()) {
-                return accounts.get(results.get(i));
+                return result(i);
             } else {
                 console.error("argument not in range 0:" + results.size());
                 return null;
@@ -488,11 +724,27 @@ public class EasyCmd {
         // finally, check if the arguments match only one account
         List<String> res = accounts.find(args);
         if (res.size() == 1) {
-            results = res;
-            return accounts.isEmpty() ? null : accounts.get(results.get(0));
+            results = ResultCursor.of(res);
+            page = 0;
+            return result(0);
         } else {
-            console.error("ambiguous account.");
+            console.error("ambiguous account.%s", didYouMean(args));
             return null;
         }
     }
+
+    // the account of a result, as printed: it may have been deleted or renamed since
+    private Account result(int index) {
+        String name = results.get(index);
+        Account a = accounts.get(name);
+        if (a == null) console.error("the account '%s' does not exist anymore.", name);
+        return a;
+    }
+
+    // the closest account names, as a suggestion to append to a message
+    private String didYouMean(String[] args) {
+        List<String> closest = accounts.closestNames(String.join(" ", args),
+                AccountsMap.SUGGESTION_DISTANCE, AccountsMap.SUGGESTION_LIMIT);
+        return closest.isEmpty() ? "" : " Did you mean: " + String.join(", ", closest) + "?";
+    }
 }
@@ -1,14 +1,37 @@
 package ch.derlin.easycmd;
 
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import org.apache.commons.ssl.DerivedKey;
 import org.apache.commons.ssl.OpenSSL;
 
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 
 /**
@@ -18,12 +41,23 @@ import java.security.GeneralSecurityException;
  * <p/>
  * it is also possible to write the content of a list in a cleartext "pretty"
  * valid json format.
+ * <p/>
+ * the methods taking a {@link SessionKey} write files starting with a {@link VaultHeader}
+ * (pluggable key derivation, random iv), and read both those and the legacy openssl-style files.
  *
  * @author Lucy Linder
  * @date Dec 21, 2012
  */
 public class SerialisationManager {
 
+    // algo of the files written before the introduction of the VaultHeader
+    public static final String LEGACY_ALGORITHM = "aes-128-cbc";
+
+    private static final byte[] SALTED_MAGIC = "Salted__".getBytes( StandardCharsets.US_ASCII );
+    private static final int SALT_LENGTH = 8;
+    private static final int BASE64_LINE_LENGTH = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * encrypts the arraylist of objects with the cipher given in parameter and
      * serializes it in json format.
@@ -36,13 +70,17 @@ public class SerialisationManager {
      */
     public static void serialize( Object data, String algo, String filepath,
                            String password ) throws IOException {
-       serialize( data, algo, new FileOutputStream( filepath ), password );
+       serialize( data, algo, new BufferedOutputStream( Files.newOutputStream( Paths.get( filepath ) ),
+               BUFFER_SIZE ), password );
     }// end serialize
 
 
     /**
      * encrypts the arraylist of objects with the cipher given in parameter and
      * serializes it in json format.
+     * <p/>
+     * The json is streamed through the cipher directly into the output stream: neither the
+     * cleartext nor the ciphertext is ever held in memory as a whole.
      *
      * @param data     the data
      * @param algo     the algorithm (aes-128-cbc for example, see the openssl conventions)
@@ -60,14 +98,19 @@ public class SerialisationManager {
 
             Gson gson = new GsonBuilder().create();
 
-            outStream.write( OpenSSL.encrypt( algo, password.toCharArray(),
-                    gson.toJson( data ).getBytes( "UTF-8" ) ) );
-            outStream.write( "\r\n".getBytes() );
+            // closing the writer flushes the cipher padding and the base64 tail,
+            // but must not close the underlying stream (see the trailing newlines below)
+            try( JsonWriter writer = new JsonWriter( new BufferedWriter( new OutputStreamWriter(
+                    encryptingStream( algo, password, new NonClosingOutputStream( outStream ) ),
+                    StandardCharsets.UTF_8 ), BUFFER_SIZE ) ) ) {
+                gson.toJson( data, data.getClass(), writer );
+            }
+            outStream.write( "\n\r\n".getBytes() );
             outStream.write( System.getProperty( "line.separator" ).getBytes() );
             outStream.flush();
 
         } catch( GeneralSecurityException e ) {
-            e.printStackTrace();
+            throw new IOException( e );
         } finally {
             outStream.close();
         }
@@ -75,6 +118,133 @@ public class SerialisationManager {
     }// end serialize
 
 
+    /**
+     * encrypts the collection with the session key, preceded by a {@link VaultHeader} holding the flags.
+     * The payload is written by the codec if the flags contain {@link VaultHeader#FLAG_BINARY},
+     * as a json array otherwise. It is compressed before the encryption if the flags contain
+     * {@link VaultHeader#FLAG_DEFLATE}.
+     *
+     * @param data      the data
+     * @param codec     the binary codec of the elements
+     * @param outStream the output stream to write to
+     * @param key       the session key
+     * @param flags     the header flags
+     * @throws IOException
+     */
+    public static <T> void serializeArray( Collection<T> data, BinaryCodec<T> codec, OutputStream outStream,
+                                           SessionKey key, int flags ) throws IOException {
+
+        if( ( flags & VaultHeader.FLAG_BLOCKS ) != 0 ) {
+            throw new IllegalArgumentException( "block-structured payloads are not written as a stream" );
+        }
+        if( ( flags & VaultHeader.FLAG_BINARY ) == 0 ) {
+            encryptWith( outStream, key, flags, out -> {
+                try( JsonWriter writer = new JsonWriter( new BufferedWriter( new OutputStreamWriter(
+                        out, StandardCharsets.UTF_8 ), BUFFER_SIZE ) ) ) {
+                    new GsonBuilder().create().toJson( data, data.getClass(), writer );
+                }
+            } );
+        } else {
+            encryptWith( outStream, key, flags, out -> {
+                try( OutputStream buffered = new BufferedOutputStream( out, BUFFER_SIZE ) ) {
+                    codec.write( buffered, data );
+                }
+            } );
+        }
+
+    }// end serializeArray
+
+
+    @FunctionalInterface
+    private interface PayloadWriter {
+        void write( OutputStream stream ) throws IOException;
+    }
+
+
+    private static void encryptWith( OutputStream outStream, SessionKey key, int flags, PayloadWriter writer )
+            throws IOException {
+        if( outStream == null ) {
+            throw new IllegalStateException( "The outputstream cannot be null!" );
+        }
+        try {
+            writer.write( compressingStream( encryptingStream( key, flags, outStream ), flags ) );
+        } catch( GeneralSecurityException e ) {
+            throw new IOException( e );
+        } finally {
+            outStream.close();
+        }
+    }// end encryptWith
+
+
+    private static OutputStream compressingStream( OutputStream outStream, int flags ) {
+        if( ( flags & VaultHeader.FLAG_DEFLATE ) == 0 ) {
+            return outStream;
+        }
+        // the fastest level: most of the gain on text, for a fraction of the cpu
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+        return new DeflaterOutputStream( outStream, deflater, BUFFER_SIZE ) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }// end compressingStream
+
+
+    /**
+     * writes a new {@link VaultHeader} with the given flags (see {@link VaultHeader#FLAG_BINARY}) to the
+     * output stream and wraps it into an encryption stream using the session key.
+     * Closing the returned stream closes the given one.
+     *
+     * @param key       the session key
+     * @param flags     the header flags, describing the payload
+     * @param outStream the stream to write the encrypted data to
+     * @return the stream to write the cleartext to
+     * @throws GeneralSecurityException if the key derivation or the cipher fails
+     */
+    public static OutputStream encryptingStream( SessionKey key, int flags, OutputStream outStream ) throws
+            GeneralSecurityException, IOException {
+        VaultHeader header = key.newHeader( flags );
+        header.write( outStream );
+        return new CipherOutputStream( outStream, key.encrypt( header ) );
+    }// end encryptingStream
+
+
+    /**
+     * wraps the output stream into an openssl compatible encryption stream: the data written
+     * will be encrypted with a password-derived key and a random salt, then base64-encoded
+     * (64 chars per line, as "openssl enc -a" does).
+     * Closing the returned stream closes the given one.
+     *
+     * @param algo      the algorithm (aes-128-cbc for example, see the openssl conventions)
+     * @param password  the password
+     * @param outStream the stream to write the encrypted data to
+     * @return the stream to write the cleartext to
+     * @throws GeneralSecurityException if the algorithm is not supported
+     */
+    public static OutputStream encryptingStream( String algo, String password,
+                                                 OutputStream outStream ) throws GeneralSecurityException,
+            IOException {
+        OpenSSL.CipherInfo info = OpenSSL.lookup( algo );
+        byte[] salt = new byte[ SALT_LENGTH ];
+        new SecureRandom().nextBytes( salt );
+
+        DerivedKey key = OpenSSL.deriveKey( password.toCharArray(), salt, info.keySize, info.ivSize, info.des2 );
+        Cipher cipher = Cipher.getInstance( info.javaCipher + "/" + info.blockMode + "/PKCS5Padding" );
+        cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec( key.key, info.javaCipher ),
+                new IvParameterSpec( key.iv ) );
+
+        OutputStream base64 = Base64.getMimeEncoder( BASE64_LINE_LENGTH, new byte[]{ '\n' } ).wrap( outStream );
+        base64.write( SALTED_MAGIC );
+        base64.write( salt );
+        return new CipherOutputStream( base64, cipher );
+    }// end encryptingStream
+
+
     /**
      * deserializes and returns the object of type "Type" contained in the
      * specified file. the decryption of the data is performed with the cipher
@@ -120,8 +290,8 @@ public class SerialisationManager {
         }
         try {
 
-            Object data = ( new GsonBuilder().create().fromJson( new InputStreamReader( OpenSSL
-                    .decrypt( algo, password.toCharArray(), stream ), "UTF-8" ), type ) );
+            Object data = ( new GsonBuilder().create().fromJson( new BufferedReader( new InputStreamReader(
+                    decryptingStream( algo, password, stream ), StandardCharsets.UTF_8 ), BUFFER_SIZE ), type ) );
             if( data == null ) {
                 throw new WrongCredentialsException();
             } else {
@@ -141,6 +311,265 @@ public class SerialisationManager {
     }// end deserialize
 
 
+    /**
+     * deserializes the json array contained in the specified file, handing each element to
+     * the consumer as soon as it is parsed. The file is decrypted on the fly, block by block:
+     * neither the cleartext nor the list of elements is ever held in memory.
+     *
+     * @param algo     the algorithm (aes-128-cbc for example, see the openssl conventions)
+     * @param filepath the filepath
+     * @param password the password
+     * @param type     the type of the array elements
+     * @param consumer the callback receiving each element, in file order
+     * @throws WrongCredentialsException if the password or the magic number is incorrect
+     * @throws IOException
+     */
+    public static <T> void deserializeArray( String algo, String filepath, String password, Class<T> type,
+                                             Consumer<T> consumer ) throws WrongCredentialsException,
+            IOException {
+        deserializeArray( filepath, in -> new Payload( decryptingStream( algo, password, in ), 0 ), type, null,
+                consumer );
+    }// end deserializeArray
+
+
+    /**
+     * deserializes the json array contained in the specified file, handing each element to
+     * the consumer as soon as it is parsed (see {@link #deserializeArray(String, String, String, Class, Consumer)}).
+     * The file is decrypted with the session key, or with its password if the file is a legacy
+     * openssl-style file encrypted with {@link #LEGACY_ALGORITHM}.
+     *
+     * @param filepath the filepath
+     * @param key      the session key
+     * @param type     the type of the array elements
+     * @param consumer the callback receiving each element, in file order
+     * @throws WrongCredentialsException if the password or the magic number is incorrect
+     * @throws IOException
+     */
+    public static <T> void deserializeArray( String filepath, SessionKey key, Class<T> type,
+                                             Consumer<T> consumer ) throws WrongCredentialsException,
+            IOException {
+        deserializeArray( filepath, key, type, null, consumer );
+    }// end deserializeArray
+
+
+    /**
+     * same as {@link #deserializeArray(String, SessionKey, Class, Consumer)}, but the payload can also be
+     * in binary format (see {@link VaultHeader#FLAG_BINARY}): the reader is chosen from the header.
+     *
+     * @param filepath the filepath
+     * @param key      the session key
+     * @param type     the type of the array elements
+     * @param codec    the binary codec of the elements
+     * @param consumer the callback receiving each element, in file order
+     * @return the flags of the header (0 for a legacy file)
+     * @throws WrongCredentialsException if the password or the magic number is incorrect
+     * @throws IOException
+     */
+    public static <T> int deserializeArray( String filepath, SessionKey key, Class<T> type, BinaryCodec<T> codec,
+                                            Consumer<T> consumer ) throws WrongCredentialsException,
+            IOException {
+        return deserializeArray( filepath, in -> openPayload( key, in ), type, codec, consumer );
+    }// end deserializeArray
+
+
+    private static <T> int deserializeArray( String filepath, Decryptor decryptor, Class<T> type,
+                                             BinaryCodec<T> codec, Consumer<T> consumer ) throws
+            WrongCredentialsException, IOException {
+
+        InputStream stream = new BufferedInputStream( Files.newInputStream( Paths.get( filepath ) ), BUFFER_SIZE );
+        try {
+            Payload payload = decryptor.open( stream );
+
+            if( ( payload.flags & VaultHeader.FLAG_BINARY ) != 0 ) {
+                if( codec == null ) {
+                    throw new IOException( "no binary format for " + type.getSimpleName() );
+                }
+                try( InputStream in = new BufferedInputStream( payload.stream, BUFFER_SIZE ) ) {
+                    codec.read( in, consumer );
+                }
+                return payload.flags;
+            }
+
+            try( JsonReader reader = new JsonReader( new BufferedReader( new InputStreamReader(
+                    payload.stream, StandardCharsets.UTF_8 ), BUFFER_SIZE ) ) ) {
+
+                Gson gson = new GsonBuilder().create();
+                reader.beginArray();
+                while( reader.hasNext() ) {
+                    consumer.accept( gson.fromJson( reader, type ) );
+                }
+                reader.endArray();
+            }
+            return payload.flags;
+
+        } catch( JsonIOException | JsonSyntaxException | MalformedJsonException | IllegalStateException |
+                StreamCorruptedException | ZipException e ) {
+            // garbage payload: the key was wrong
+            throw new WrongCredentialsException( e.getMessage() );
+        } catch( GeneralSecurityException e ) {
+            throw new WrongCredentialsException( e.getMessage() );
+        } catch( IOException e ) {
+            // bad padding is reported by the cipher stream as an IOException
+            if( e.getCause() instanceof GeneralSecurityException ) {
+                throw new WrongCredentialsException( e.getMessage() );
+            }
+            throw e;
+        } finally {
+            stream.close();
+        }// end try
+
+    }// end deserializeArray
+
+
+    /**
+     * wraps the input stream into a decryption stream. If the stream starts with a {@link VaultHeader},
+     * the payload is decrypted (and inflated, see {@link VaultHeader#FLAG_DEFLATE}) with the session key
+     * (derived on first use); otherwise, it is assumed to be a
+     * legacy openssl-style file encrypted with {@link #LEGACY_ALGORITHM} and the session password
+     * (see {@link #decryptingStream(String, String, InputStream)}).
+     * Closing the returned stream closes the given one.
+     *
+     * @param key    the session key
+     * @param stream the stream to read the encrypted data from
+     * @return the stream to read the cleartext from, and the flags of the header (0 for a legacy file)
+     * @throws WrongCredentialsException if the magic number is incorrect
+     * @throws GeneralSecurityException  if the algorithm is not supported
+     */
+    private static Payload openPayload( SessionKey key, InputStream stream ) throws
+            WrongCredentialsException, GeneralSecurityException, IOException {
+
+        InputStream in = stream.markSupported() ? stream : new BufferedInputStream( stream );
+        if( !VaultHeader.isPresent( in ) ) {
+            return new Payload( decryptingStream( LEGACY_ALGORITHM, key.getPassword(), in ), 0 );
+        }
+        VaultHeader header = VaultHeader.read( in );
+        if( header.hasFlag( VaultHeader.FLAG_BLOCKS ) ) {
+            throw new IOException( "block-structured file: the payload is not a single stream" );
+        }
+        InputStream payload = new CipherInputStream( in, key.unlock( header ) );
+        if( header.hasFlag( VaultHeader.FLAG_DEFLATE ) ) {
+            payload = new InflaterInputStream( payload );
+        }
+        return new Payload( payload, header.getFlags() );
+    }// end openPayload
+
+
+    @FunctionalInterface
+    private interface Decryptor {
+        Payload open( InputStream stream ) throws WrongCredentialsException, GeneralSecurityException,
+                IOException;
+    }
+
+
+    /**
+     * the decrypted payload of a file, and the flags describing its format
+     */
+    private static class Payload {
+        final InputStream stream;
+        final int flags;
+
+        Payload( InputStream stream, int flags ) {
+            this.stream = stream;
+            this.flags = flags;
+        }
+    }
+
+
+    /**
+     * a compact binary format for the elements of an array, as an alternative to json
+     * (see {@link VaultHeader#FLAG_BINARY}).
+     *
+     * @param <T> the type of the elements
+     */
+    public interface BinaryCodec<T> {
+
+        /**
+         * writes the elements to the stream
+         */
+        void write( OutputStream stream, Collection<T> data ) throws IOException;
+
+        /**
+         * reads the elements from the stream, handing each one to the consumer as soon as it is read
+         *
+         * @throws StreamCorruptedException if the data is not in the expected format
+         */
+        void read( InputStream stream, Consumer<T> consumer ) throws IOException;
+    }
+
+
+    /**
+     * wraps the input stream into an openssl compatible decryption stream: both the raw
+     * and the base64 ("openssl enc -a") salted formats are supported.
+     * Closing the returned stream closes the given one.
+     *
+     * @param algo     the algorithm (aes-128-cbc for example, see the openssl conventions)
+     * @param password the password
+     * @param stream   the stream to read the encrypted data from
+     * @return the stream to read the cleartext from
+     * @throws WrongCredentialsException if the magic number is incorrect
+     * @throws GeneralSecurityException  if the algorithm is not supported
+     */
+    public static InputStream decryptingStream( String algo, String password, InputStream stream ) throws
+            WrongCredentialsException, GeneralSecurityException, IOException {
+
+        InputStream in = stream.markSupported() ? stream : new BufferedInputStream( stream );
+        in.mark( SALTED_MAGIC.length );
+        byte[] magic = readFully( in, SALTED_MAGIC.length );
+        in.reset();
+
+        if( !Arrays.equals( magic, SALTED_MAGIC ) ) {
+            // not raw: assume base64, line breaks are skipped by the mime decoder
+            in = Base64.getMimeDecoder().wrap( in );
+            magic = readFully( in, SALTED_MAGIC.length );
+        } else {
+            in.skip( SALTED_MAGIC.length );
+        }
+        if( !Arrays.equals( magic, SALTED_MAGIC ) ) {
+            throw new WrongCredentialsException( "invalid magic number" );
+        }
+        byte[] salt = readFully( in, SALT_LENGTH );
+
+        OpenSSL.CipherInfo info = OpenSSL.lookup( algo );
+        DerivedKey key = OpenSSL.deriveKey( password.toCharArray(), salt, info.keySize, info.ivSize, info.des2 );
+        Cipher cipher = Cipher.getInstance( info.javaCipher + "/" + info.blockMode + "/PKCS5Padding" );
+        cipher.init( Cipher.DECRYPT_MODE, new SecretKeySpec( key.key, info.javaCipher ),
+                new IvParameterSpec( key.iv ) );
+        return new CipherInputStream( in, cipher );
+    }// end decryptingStream
+
+
+    private static byte[] readFully( InputStream in, int length ) throws IOException {
+        byte[] bytes = new byte[ length ];
+        int read = 0;
+        while( read < length ) {
+            int n = in.read( bytes, read, length - read );
+            if( n < 0 ) throw new EOFException( "unexpected end of stream" );
+            read += n;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * lets the caller keep writing to a stream after the wrapping streams have been closed.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream( OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+
     public static class WrongCredentialsException extends Exception {
         public WrongCredentialsException() {
             super();
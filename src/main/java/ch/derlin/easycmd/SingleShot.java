@@ -0,0 +1,168 @@
+package ch.derlin.easycmd;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsJournal;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.accounts.BlockVault;
+import ch.derlin.easycmd.crypto.SessionKey;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One-shot lookup: <code>get &lt;field&gt; &lt;name | terms&gt; -f &lt;file&gt; [-p &lt;pass&gt;]</code>
+ * prints the field of one account and stops.
+ * <p>
+ * Only the vault and the search code are loaded: no jline console, no completers, no documentation.
+ * The account is the one with this exact name (ignoring case), else the only one matching all the terms.
+ * In a block-structured vault ({@link BlockVault}), an exact name is found without loading the whole vault.
+ * The value is printed as is on stdout, errors on stderr; the exit status is 0 on success.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class SingleShot {
+
+    public static final String COMMAND = "get";
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Run a one-shot command.
+     *
+     * @param args the command line, starting with the command
+     * @param out  where to print the value
+     * @param err  where to print the errors
+     * @return the exit status
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        Options options = new Options();
+        options.addOption("f", "file", true, "the session file");
+        options.addOption("p", "pass", true, "the password (unsafe: added to history)");
+
+        CommandLine line;
+        try {
+            line = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            err.println(e.getMessage());
+            return 1;
+        }
+
+        List<String> rest = line.getArgList();
+        if (rest.size() < 3 || !rest.get(0).equals(COMMAND) || !line.hasOption("file")) {
+            err.println("usage: get <field> <name | terms> -f <file> [-p <pass>]");
+            return 1;
+        }
+        String field = rest.get(1);
+        String[] terms = rest.subList(2, rest.size()).toArray(new String[0]);
+        String filepath = line.getOptionValue("file");
+
+        String pass = line.getOptionValue("pass");
+        if (pass == null) {
+            java.io.Console terminal = System.console();
+            char[] read = terminal == null ? null : terminal.readPassword("password> ");
+            if (read == null || read.length == 0) {
+                err.println("missing password (-p <pass>)");
+                return 1;
+            }
+            pass = new String(read);
+        }
+
+        Account account;
+        try {
+            SessionKey key = new SessionKey(pass);
+            account = BlockVault.isBlockFile(filepath) ? lookup(filepath, key, String.join(" ", terms)) : null;
+            if (account == null) {
+                AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+                AccountsJournal journal = AccountsJournal.open(filepath, key, accounts, null);
+                journal.close();
+                for (String warning : journal.getWarnings()) err.println(warning);
+                account = findOne(accounts, terms, err);
+                if (account == null) return 1;
+            }
+        } catch (SerialisationManager.WrongCredentialsException e) {
+            err.println("wrong credentials");
+            return 1;
+        } catch (IOException e) {
+            err.println("error reading '" + filepath + "': " + e.getMessage());
+            return 1;
+        }
+
+        String value = account.get(field);
+        if (value == null) {
+            err.println("invalid field " + field);
+            return 1;
+        }
+        out.println(value);
+        return 0;
+    }
+
+    /**
+     * Look an exact name up in a block-structured vault: only the block which can hold the name is
+     * decrypted, plus the journal, which may have changed it since the last save.
+     *
+     * @return the account, or null if there is none with this name
+     */
+    private static Account lookup(String filepath, SessionKey key, String name) throws IOException,
+            SerialisationManager.WrongCredentialsException {
+        try (BlockVault vault = BlockVault.open(filepath, key)) {
+            JournalChanges changes = new JournalChanges();
+            AccountsJournal.open(filepath, key, changes, null).close();
+            String changed = changes.getKeyLower(name);
+            if (changed != null) return changes.get(changed);
+            Account account = vault.get(name);
+            return account == null || changes.removed.contains(account.name) ? null : account;
+        }
+    }
+
+    private static Account findOne(AccountsMap accounts, String[] terms, PrintStream err) {
+        String name = AccountsMap.normalize(String.join(" ", terms));
+        for (Account a : accounts.values()) {
+            if (AccountsMap.normalize(a.name).equals(name)) return a;
+        }//end for
+
+        // a single search: scanning is cheaper than building the index
+        List<String> matches = accounts.findOnce(terms);
+        if (matches.size() == 1) return accounts.get(matches.get(0));
+
+        if (matches.isEmpty()) {
+            err.println("not match.");
+        } else {
+            err.println("ambiguous account: " + Arrays.toString(matches.toArray()));
+        }
+        List<String> closest = accounts.closestNamesOnce(String.join(" ", terms),
+                AccountsMap.SUGGESTION_DISTANCE, AccountsMap.SUGGESTION_LIMIT);
+        if (!closest.isEmpty()) err.println("did you mean: " + String.join(", ", closest) + "?");
+        return null;
+    }
+
+    /**
+     * The accounts put by the journal, and the names it removed from the vault.
+     */
+    private static class JournalChanges extends AccountsMap {
+        final Set<String> removed = new HashSet<>();
+
+        @Override
+        public Account put(String key, Account value) {
+            removed.remove(key);
+            return super.put(key, value);
+        }
+
+        @Override
+        public Account remove(Object key) {
+            removed.add((String) key);
+            return super.remove(key);
+        }
+    }
+}
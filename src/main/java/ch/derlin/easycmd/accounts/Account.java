@@ -1,7 +1,13 @@
 package ch.derlin.easycmd.accounts;
 
 import ch.derlin.easycmd.console.Console;
+import ch.derlin.easycmd.crypto.Sealed;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.IOException;
 import java.time.LocalDateTime;
@@ -14,13 +20,21 @@ import java.util.regex.Pattern;
  * Version: 0.1
  */
 public class Account {
-    public String name = "", pseudo = "", email = "", password = "", notes = "";
+    public String name = "", pseudo = "", email = "";
+    // kept sealed in memory, decrypted on each read (see Sealed)
+    @JsonAdapter(SealedAdapter.class)
+    private byte[] password = Sealed.EMPTY;
+    public String notes = "";
 
     @SerializedName("creation date")
     public String creationDate;
     @SerializedName("modification date")
     public String modificationDate;
 
+    // lowercased name, pseudo, email and notes for the case-insensitive searches.
+    // Built on first use (gson skips transient fields), reset by overrideWith
+    private transient String[] lowerFields;
+
     @FunctionalInterface
     public interface EditAccountChecker {
         boolean apply(Account old, Account nw);
@@ -33,24 +47,80 @@ public class Account {
                 pattern.matcher(notes).matches();
     }
 
+    /**
+     * Check that each pattern is in one of the fields, ignoring case. The patterns are lowercased on each
+     * call: to match many accounts, lowercase them once with {@link #lower(String...)} and use
+     * {@link #containsLower(String...)}.
+     */
     public boolean contains(String... patterns) {
-        for (String pattern : patterns) {
-            pattern = pattern.toLowerCase();
-            boolean match = name.toLowerCase().contains(pattern) ||
-                    pseudo.toLowerCase().contains(pattern) ||
-                    email.toLowerCase().contains(pattern) ||
-                    notes.toLowerCase().contains(pattern);
-            if (!match) return false;
+        return containsLower(lower(patterns));
+    }
+
+    /**
+     * Same as {@link #contains(String...)}, but the patterns must already be lowercased (see {@link #lower(String...)}).
+     * Does not allocate.
+     */
+    public boolean containsLower(String... lowerPatterns) {
+        for (String pattern : lowerPatterns) {
+            if (!containsLower(pattern)) return false;
         }//end for
         return true;
     }
 
+    boolean containsLower(String lowerPattern) {
+        for (String field : lowerFields()) {
+            if (field.contains(lowerPattern)) return true;
+        }//end for
+        return false;
+    }
+
+    /**
+     * @return the patterns lowercased, for {@link #containsLower(String...)}
+     */
+    public static String[] lower(String... patterns) {
+        String[] lower = new String[patterns.length];
+        for (int i = 0; i < patterns.length; i++) lower[i] = patterns[i].toLowerCase();
+        return lower;
+    }
+
+    String[] lowerFields() {
+        if (lowerFields == null) {
+            lowerFields = new String[]{name.toLowerCase(), pseudo.toLowerCase(), email.toLowerCase(), notes.toLowerCase()};
+        }
+        return lowerFields;
+    }
+
+    /**
+     * @return the password, decrypted
+     */
+    public String getPassword() {
+        return Sealed.open(password);
+    }
+
+    public void setPassword(String password) {
+        this.password = Sealed.seal(password);
+    }
+
+    /**
+     * @return the sealed password, see {@link Sealed#openBytes(byte[])}
+     */
+    byte[] getSealedPassword() {
+        return password;
+    }
+
+    /**
+     * Set the password already sealed, see {@link Sealed#seal(byte[], int, int)}.
+     */
+    void setSealedPassword(byte[] sealed) {
+        this.password = sealed;
+    }
+
     public String get(String field) {
         field = field.toLowerCase();
         if (field.equals("name")) return name;
         if (field.equals("pseudo")) return pseudo;
         if (field.equals("email")) return email;
-        if (field.startsWith("pass")) return password;
+        if (field.startsWith("pass")) return getPassword();
         if (field.startsWith("note")) return notes;
         return null;
     }
@@ -70,7 +140,7 @@ public class Account {
         newAccount.name = console.readWithDefault("   name> ", name).trim();
         newAccount.pseudo = console.readWithDefault("   pseudo> ", pseudo).trim();
         if (!email.isEmpty()) newAccount.email = console.readWithDefault("   email> ", email).trim();
-        newAccount.password = console.readPassword("   password> ", password).trim();
+        newAccount.setPassword(console.readPassword("   password> ", getPassword()).trim());
         newAccount.notes = console.readWithDefault("   note> ", notes).trim();
 
         console.println();
@@ -80,12 +150,29 @@ public class Account {
         return true;
     }
 
+    /**
+     * @return a copy of the account, to modify instead of an account in a map (see {@link AccountsMap#snapshot()})
+     */
+    public Account copy() {
+        Account copy = new Account();
+        copy.name = name;
+        copy.pseudo = pseudo;
+        copy.email = email;
+        // sealed values are never modified, only replaced
+        copy.password = password;
+        copy.notes = notes;
+        copy.creationDate = creationDate;
+        copy.modificationDate = modificationDate;
+        return copy;
+    }
+
     public void overrideWith(Account other) {
         this.name = other.name;
         this.pseudo = other.pseudo;
         this.email = other.email;
         this.password = other.password;
         this.notes = other.notes;
+        this.lowerFields = null;
         String now = LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME);
         if (creationDate == null || creationDate.isEmpty()) creationDate = now;
         this.modificationDate = now;
@@ -98,15 +185,36 @@ public class Account {
 
     @Override
     public int hashCode() {
-        return name.hashCode() + pseudo.hashCode() + password.hashCode() + notes.hashCode();
+        return name.hashCode() + pseudo.hashCode() + getPassword().hashCode() + notes.hashCode();
     }
 
     @Override
     public String toString() {
         return String.format("{name=%s, pseudo=%s, pass=%s, created=%s, modified=%s}",
-                name, pseudo, password, creationDate, modificationDate);
+                name, pseudo, getPassword(), creationDate, modificationDate);
     }
 
-
+    /**
+     * Reads and writes the sealed fields as plain json strings.
+     */
+    static class SealedAdapter extends TypeAdapter<byte[]> {
+        @Override
+        public void write(JsonWriter out, byte[] value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                out.value(Sealed.open(value));
+            }
+        }
+
+        @Override
+        public byte[] read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return Sealed.seal(in.nextString());
+        }
+    }
 
 }//end class
@@ -0,0 +1,344 @@
+package ch.derlin.easycmd.accounts;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link AccountsMap#find(String...)} query, compiled into a tree of predicates.
+ * <p>
+ * The terms are ANDed, as in a plain search. A term can be:
+ * <ul>
+ * <li><code>bank</code>: a field (name, pseudo, email or notes) contains "bank", ignoring case;</li>
+ * <li><code>name:bank</code>, <code>pseudo:</code>, <code>email:</code>, <code>notes:</code>: the field contains "bank";
+ * <code>name:bank*</code>: the field starts with "bank"; <code>name:=bank</code>: the field is "bank";</li>
+ * <li><code>created:2017-02</code>, <code>modified:2017..2018-06-30</code>: the date is in the range, both bounds
+ * included and optional (<code>created:2018..</code>). A bound is a prefix of an ISO date: 2017 covers the whole
+ * year;</li>
+ * <li><code>NOT term</code>: the term does not match;</li>
+ * <li><code>a b OR c</code>: OR between groups of ANDed terms, "(a and b) or c".</li>
+ * </ul>
+ * Any term which is not valid in this syntax (unknown scope, invalid date, dangling operator) is a plain search,
+ * so that every search is a valid query.
+ * <p>
+ * The children of an AND or an OR are evaluated cheapest first (see {@code Node#cost}): dates and short fields
+ * before the notes, exact matches before substrings, so that a narrow query rejects most accounts without
+ * reading their notes. The terms required by the query ({@link #getLiterals()}) select the candidates
+ * in the trigram index.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+class AccountQuery implements Predicate<Account> {
+
+    static final String OR = "OR", NOT = "NOT";
+
+    // the scopes, in the order of Account#lowerFields
+    private static final List<String> FIELDS = Arrays.asList("name", "pseudo", "email", "notes");
+    private static final int ANY_FIELD = -1;
+    // cost of a substring search in each field, then in all of them
+    private static final int[] FIELD_COSTS = {2, 2, 3, 16};
+    private static final int ANY_FIELD_COST = 24;
+
+    private static final Pattern DATE = Pattern.compile("\\d{4}(-\\d{2}(-\\d{2}(T[0-9:.]*)?)?)?");
+
+    private final Node root;
+    private final String[] literals;
+
+    private AccountQuery(Node root) {
+        this.root = root;
+        List<String> required = new ArrayList<>();
+        root.literals(required);
+        this.literals = required.toArray(new String[0]);
+    }
+
+    /**
+     * Compile a query.
+     *
+     * @param terms the terms, as typed
+     * @return the query, which matches all the accounts if there is no term
+     */
+    static AccountQuery parse(String... terms) {
+        return new AccountQuery(new Parser(terms).or());
+    }
+
+    @Override
+    public boolean test(Account account) {
+        return root.test(account);
+    }
+
+    /**
+     * @return the lowercased substrings which any account matching the query contains, possibly none
+     */
+    String[] getLiterals() {
+        return literals;
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    // ------------------------------------- parsing
+
+    private static class Parser {
+        private final String[] terms;
+        private int pos;
+
+        Parser(String[] terms) {
+            this.terms = terms;
+        }
+
+        Node or() {
+            List<Node> branches = new ArrayList<>();
+            branches.add(and());
+            while (isSeparator(pos)) {
+                pos++;
+                branches.add(and());
+            }//end while
+            return branches.size() == 1 ? branches.get(0) : new Or(branches);
+        }
+
+        private Node and() {
+            List<Node> clauses = new ArrayList<>();
+            while (pos < terms.length && !(isSeparator(pos) && !clauses.isEmpty())) {
+                clauses.add(unary());
+            }//end while
+            return clauses.size() == 1 ? clauses.get(0) : new And(clauses);
+        }
+
+        private Node unary() {
+            // a NOT right before an OR is dangling
+            if (pos + 1 < terms.length && terms[pos].equals(NOT) && !isSeparator(pos + 1)) {
+                pos++;
+                return new Not(unary());
+            }
+            return clause(terms[pos++]);
+        }
+
+        /**
+         * @return true if the term is an OR followed by another term
+         */
+        private boolean isSeparator(int i) {
+            return i + 1 < terms.length && terms[i].equals(OR);
+        }
+
+        private static Node clause(String term) {
+            int colon = term.indexOf(':');
+            if (colon > 0) {
+                String scope = term.substring(0, colon).toLowerCase(), value = term.substring(colon + 1);
+                if (scope.equals("note")) scope = "notes";
+                int field = FIELDS.indexOf(scope);
+                if (field >= 0) {
+                    if (value.startsWith("=")) return new Term(field, Term.EXACT, value.substring(1));
+                    if (value.endsWith("*")) return new Term(field, Term.PREFIX, value.substring(0, value.length() - 1));
+                    return new Term(field, Term.CONTAINS, value);
+                }
+                if (scope.equals("created") || scope.equals("modified")) {
+                    DateRange range = DateRange.parse(scope.equals("created"), value);
+                    if (range != null) return range;
+                }
+            }
+            return new Term(ANY_FIELD, Term.CONTAINS, term);
+        }
+    }
+
+    // ------------------------------------- predicates
+
+    private abstract static class Node implements Predicate<Account> {
+        /**
+         * @return the relative cost of a test, to evaluate the cheapest first
+         */
+        abstract int cost();
+
+        /**
+         * Add the lowercased substrings which any matching account contains.
+         */
+        void literals(List<String> literals) {
+        }
+    }
+
+    private static class Term extends Node {
+        static final int CONTAINS = 0, PREFIX = 1, EXACT = 2;
+
+        final int field, mode;
+        final String value;
+
+        Term(int field, int mode, String value) {
+            this.field = field;
+            this.mode = mode;
+            this.value = value.toLowerCase();
+        }
+
+        @Override
+        public boolean test(Account account) {
+            if (field == ANY_FIELD) return account.containsLower(value);
+            String s = account.lowerFields()[field];
+            switch (mode) {
+                case EXACT:
+                    return s.equals(value);
+                case PREFIX:
+                    return s.startsWith(value);
+                default:
+                    return s.contains(value);
+            }
+        }
+
+        @Override
+        int cost() {
+            if (field == ANY_FIELD) return ANY_FIELD_COST;
+            // an exact or prefix match stops at the first characters
+            return mode == CONTAINS ? FIELD_COSTS[field] : 1;
+        }
+
+        @Override
+        void literals(List<String> literals) {
+            if (!value.isEmpty()) literals.add(value);
+        }
+
+        @Override
+        public String toString() {
+            String scope = field == ANY_FIELD ? "" : FIELDS.get(field) + ":";
+            return scope + (mode == EXACT ? "=" : "") + value + (mode == PREFIX ? "*" : "");
+        }
+    }
+
+    private static class DateRange extends Node {
+        final boolean creation;
+        // prefixes of ISO dates, null if unbounded
+        final String from, to;
+
+        private DateRange(boolean creation, String from, String to) {
+            this.creation = creation;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return the range, or null if the value is not a date or a range of dates
+         */
+        static DateRange parse(boolean creation, String value) {
+            int dots = value.indexOf("..");
+            String from = dots < 0 ? value : value.substring(0, dots);
+            String to = dots < 0 ? value : value.substring(dots + 2);
+            if (from.isEmpty() && to.isEmpty()) return null;
+            if (!from.isEmpty() && !DATE.matcher(from).matches()) return null;
+            if (!to.isEmpty() && !DATE.matcher(to).matches()) return null;
+            return new DateRange(creation, from.isEmpty() ? null : from, to.isEmpty() ? null : to);
+        }
+
+        @Override
+        public boolean test(Account account) {
+            // ISO dates sort as strings
+            String date = creation ? account.creationDate : account.modificationDate;
+            if (date == null || date.isEmpty()) return false;
+            if (from != null && date.compareTo(from) < 0) return false;
+            return to == null || date.compareTo(to) <= 0 || date.startsWith(to);
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        public String toString() {
+            return (creation ? "created:" : "modified:") + (from == null ? "" : from) + ".." + (to == null ? "" : to);
+        }
+    }
+
+    private static class Not extends Node {
+        final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        public boolean test(Account account) {
+            return !child.test(account);
+        }
+
+        @Override
+        int cost() {
+            return child.cost();
+        }
+
+        @Override
+        public String toString() {
+            return NOT + " " + child;
+        }
+    }
+
+    private static class And extends Node {
+        final Node[] children;
+        final int cost;
+
+        And(List<Node> children) {
+            this.children = sorted(children);
+            this.cost = children.stream().mapToInt(Node::cost).sum();
+        }
+
+        @Override
+        public boolean test(Account account) {
+            for (Node child : children) {
+                if (!child.test(account)) return false;
+            }//end for
+            return true;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        void literals(List<String> literals) {
+            for (Node child : children) child.literals(literals);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + String.join(" ", Arrays.stream(children).map(Node::toString).toArray(String[]::new)) + ")";
+        }
+    }
+
+    private static class Or extends Node {
+        final Node[] children;
+        final int cost;
+
+        Or(List<Node> children) {
+            this.children = sorted(children);
+            this.cost = children.stream().mapToInt(Node::cost).sum();
+        }
+
+        @Override
+        public boolean test(Account account) {
+            for (Node child : children) {
+                if (child.test(account)) return true;
+            }//end for
+            return false;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + String.join(" " + OR + " ", Arrays.stream(children).map(Node::toString).toArray(String[]::new)) + ")";
+        }
+    }
+
+    /**
+     * @return the nodes, cheapest first; among terms of the same cost, the longest (most selective) first
+     */
+    private static Node[] sorted(List<Node> nodes) {
+        Node[] sorted = nodes.toArray(new Node[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(Node::cost)
+                .thenComparingInt(n -> n instanceof Term ? -((Term) n).value.length() : 0));
+        return sorted;
+    }
+}
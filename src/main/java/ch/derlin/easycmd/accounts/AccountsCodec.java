@@ -0,0 +1,164 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.SerialisationManager;
+import ch.derlin.easycmd.crypto.Sealed;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Binary format of the accounts, more compact and faster to parse than json (no field names, no escaping,
+ * no reflection):
+ * <pre>
+ * version (1 byte) | record count (int) | records
+ * record: name | pseudo | email | password | notes | creation date | modification date
+ * field:  varint (UTF-8 length + 1, 0 for null) | UTF-8 bytes
+ * </pre>
+ * The record count lets the reader stop exactly after the last record and detect truncated files: a payload
+ * which ends before its last record or goes on after it, and invalid or oversized field lengths, are
+ * rejected with a {@link StreamCorruptedException} (or an {@link EOFException}) rather than read as blank fields.
+ * New fields can only be appended to the records, with a new version. The password goes straight
+ * from the bytes read to its sealed form (see {@link Account#getPassword()}).
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AccountsCodec implements SerialisationManager.BinaryCodec<Account> {
+
+    public static final AccountsCodec INSTANCE = new AccountsCodec();
+
+    public static final int VERSION = 1;
+
+    // sanity check against garbage (wrong key): no field is that long
+    private static final int MAX_FIELD_LENGTH = 16 * 1024 * 1024;
+
+    private AccountsCodec() {
+    }
+
+    @Override
+    public void write(OutputStream stream, Collection<Account> accounts) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeByte(VERSION);
+        out.writeInt(accounts.size());
+        for (Account a : accounts) {
+            writeString(out, a.name);
+            writeString(out, a.pseudo);
+            writeString(out, a.email);
+            writeSealed(out, a.getSealedPassword());
+            writeString(out, a.notes);
+            writeString(out, a.creationDate);
+            writeString(out, a.modificationDate);
+        }//end for
+        out.flush();
+    }
+
+    @Override
+    public void read(InputStream stream, Consumer<Account> consumer) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        int version = in.readUnsignedByte();
+        if (version != VERSION) throw new StreamCorruptedException("unsupported accounts format " + version);
+        int count = in.readInt();
+        if (count < 0) throw new StreamCorruptedException("invalid record count " + count);
+
+        FieldReader fields = new FieldReader(in);
+        for (int i = 0; i < count; i++) {
+            Account a = new Account();
+            a.name = fields.read();
+            a.pseudo = fields.read();
+            a.email = fields.read();
+            a.setSealedPassword(fields.readSealed());
+            a.notes = fields.read();
+            a.creationDate = fields.read();
+            a.modificationDate = fields.read();
+            if (a.name == null) throw new StreamCorruptedException("account without name in record " + i);
+            consumer.accept(a);
+        }//end for
+        if (in.read() >= 0) throw new StreamCorruptedException("data after the " + count + " records");
+    }
+
+    // ------------------------------------- private utils
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static void writeSealed(DataOutputStream out, byte[] sealed) throws IOException {
+        if (sealed == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = Sealed.openBytes(sealed);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+        Arrays.fill(bytes, (byte) 0);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }//end while
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads the fields, through a single growing buffer.
+     */
+    private static class FieldReader {
+        private final DataInputStream in;
+        private byte[] buffer = new byte[256];
+
+        FieldReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        String read() throws IOException {
+            int length = fill();
+            return length < 0 ? null : new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read a field straight into its sealed form: no string is created.
+         */
+        byte[] readSealed() throws IOException {
+            int length = fill();
+            if (length < 0) return null;
+            byte[] sealed = Sealed.seal(buffer, 0, length);
+            Arrays.fill(buffer, 0, length, (byte) 0);
+            return sealed;
+        }
+
+        // read the next field into the buffer, return its length (-1 for null)
+        private int fill() throws IOException {
+            int length = readVarint() - 1;
+            if (length < 0) return -1;
+            if (length > MAX_FIELD_LENGTH) throw new StreamCorruptedException("invalid field length " + length);
+            if (length > buffer.length) buffer = new byte[Math.max(length, buffer.length * 2)];
+            in.readFully(buffer, 0, length);
+            return length;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 28; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }//end for
+            // the fifth byte holds bits 28 to 30: anything more would overflow into a negative length
+            int b = in.readUnsignedByte();
+            if ((b & 0xF8) != 0) throw new StreamCorruptedException("invalid varint");
+            return value | (b << 28);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Write-ahead journal of the mutations done on an {@link AccountsMap}.
+ * <p>
+ * Instead of rewriting the whole vault on every change, each mutation is appended to
+ * a journal file living next to the vault (&lt;vault&gt;.journal) as one base64-encoded line:
+ * a {@link VaultHeader} (fresh iv) followed by the record encrypted with the session key.
+ * The journal is replayed on top of the vault when it is opened.
+ * <p>
+ * Once the journal grows past {@link #MAX_RECORDS} records or {@link #MAX_BYTES} bytes,
+ * it is compacted: the journal is renamed to &lt;vault&gt;.journal.pending (new records go to
+ * a fresh journal), a snapshot of the accounts is handed to the {@link BackgroundSaver} and
+ * the pending journal is deleted once the vault is written. Records are idempotent, so a crash
+ * at any point only means replaying some of them twice.
+ * <p>
+ * An unreadable last record is a torn write (crash while appending) and is ignored. An unreadable
+ * record followed by others means the journal is damaged: the readable records are still replayed,
+ * but the file is set aside (&lt;journal&gt;.damaged) instead of being compacted away, and a warning
+ * is reported (see {@link #getWarnings()}).
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AccountsJournal implements Closeable {
+
+    public static final String EXTENSION = ".journal";
+    public static final String PENDING_EXTENSION = ".journal.pending";
+    public static final String DAMAGED_EXTENSION = ".damaged";
+
+    public static final int MAX_RECORDS = 64;
+    public static final long MAX_BYTES = 256 * 1024;
+
+    private static final String OP_PUT = "put", OP_REMOVE = "remove";
+
+    private final String filepath;
+    private final SessionKey key;
+    private final AccountsMap accounts;
+    private final Path journal, pending;
+    private final Gson gson = new GsonBuilder().create();
+
+    private final BackgroundSaver saver;
+
+    private int records;
+    private long bytes;
+    private long pendingGeneration;
+
+    private final List<String> warnings = new ArrayList<>();
+
+    // ------------------------------------- constructors
+
+    private AccountsJournal(String filepath, SessionKey key, AccountsMap accounts, BackgroundSaver saver) {
+        this.filepath = filepath;
+        this.key = key;
+        this.accounts = accounts;
+        this.saver = saver;
+        this.journal = Paths.get(filepath + EXTENSION);
+        this.pending = Paths.get(filepath + PENDING_EXTENSION);
+    }
+
+    /**
+     * Open the journal of the given vault and replay it on top of the accounts
+     * (the pending journal of an interrupted compaction first, then the current one).
+     *
+     * @param filepath the vault filepath
+     * @param key      the session key
+     * @param accounts the accounts, freshly loaded from the vault
+     * @param saver    the saver writing the vault, null to only replay the journal (read-only)
+     * @return the journal
+     */
+    public static AccountsJournal open(String filepath, SessionKey key, AccountsMap accounts,
+                                       BackgroundSaver saver) throws IOException {
+        AccountsJournal j = new AccountsJournal(filepath, key, accounts, saver);
+        boolean damaged = j.replay(j.pending) < 0;
+        j.records = j.replay(j.journal);
+        if (j.records < 0) {
+            damaged = true;
+            j.records = 0;
+        }
+        j.bytes = Files.exists(j.journal) ? Files.size(j.journal) : 0;
+        // the damaged files are kept aside: write what could be replayed to the vault
+        if (damaged && saver != null) j.saveAll();
+        return j;
+    }
+
+    /**
+     * Create the journal of a vault whose content is about to be replaced as a whole
+     * (see {@link #saveAll()}): existing journal files belong to the previous content
+     * and are deleted, so that they are never replayed on top of the new one.
+     *
+     * @param filepath the vault filepath
+     * @param key      the session key
+     * @param accounts the new accounts
+     * @param saver    the saver writing the vault
+     * @return the journal
+     */
+    public static AccountsJournal create(String filepath, SessionKey key, AccountsMap accounts,
+                                         BackgroundSaver saver) throws IOException {
+        AccountsJournal j = new AccountsJournal(filepath, key, accounts, saver);
+        Files.deleteIfExists(j.pending);
+        Files.deleteIfExists(j.journal);
+        return j;
+    }
+
+    // ------------------------------------- mutations
+
+    /**
+     * Record the addition of an account.
+     */
+    public void logPut(Account account) throws IOException {
+        logPut(null, account);
+    }
+
+    /**
+     * Record the replacement of the account stored under oldName by the given account
+     * (the name may have changed).
+     */
+    public void logPut(String oldName, Account account) throws IOException {
+        Record r = new Record();
+        r.op = OP_PUT;
+        r.name = oldName;
+        r.account = account;
+        append(r);
+    }
+
+    /**
+     * Record the deletion of an account.
+     */
+    public void logRemove(String name) throws IOException {
+        Record r = new Record();
+        r.op = OP_REMOVE;
+        r.name = name;
+        append(r);
+    }
+
+    /**
+     * Rewrite the whole vault (in the background) and discard the journal once it is written.
+     * Use it when the accounts have been replaced as a whole.
+     */
+    public synchronized void saveAll() throws IOException {
+        if (saver == null) throw new IllegalStateException("read-only journal");
+        compact();
+    }
+
+    /**
+     * @return the problems met while replaying the journal (damaged records), empty if none
+     */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * Wait for the vault writes to finish. The saver itself is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (saver == null) return;
+        try {
+            saver.drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ------------------------------------- private utils
+
+    private synchronized void append(Record record) throws IOException {
+        if (saver == null) throw new IllegalStateException("read-only journal");
+        if (!Files.exists(Paths.get(filepath))) {
+            // no vault yet: the journal would be orphaned, write the vault instead
+            saveAll();
+            return;
+        }
+
+        byte[] line = (encrypt(gson.toJson(record)) + "\n").getBytes(StandardCharsets.US_ASCII);
+        Files.write(journal, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        records++;
+        bytes += line.length;
+
+        if (records >= MAX_RECORDS || bytes >= MAX_BYTES) {
+            compact();
+        }
+    }
+
+    private void compact() throws IOException {
+        // records appended from now on go to a new journal, replayed after the pending one
+        if (Files.exists(journal)) {
+            if (Files.exists(pending)) {
+                // a previous write is still running or failed: keep its records
+                Files.write(pending, Files.readAllBytes(journal), StandardOpenOption.APPEND);
+                Files.delete(journal);
+            } else {
+                Files.move(journal, pending, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        records = 0;
+        bytes = 0;
+
+        // the pending journal can only be dropped by the write of a snapshot covering all its records
+        long generation = ++pendingGeneration;
+        // O(1), and never modified by the edits which follow
+        saver.submit(filepath, key, accounts.snapshot().values(), accounts.getFormat(), () -> dropPending(generation));
+    }
+
+    private synchronized void dropPending(long generation) {
+        if (generation != pendingGeneration) return;
+        try {
+            Files.deleteIfExists(pending);
+        } catch (IOException e) {
+            // harmless: the records will be replayed once more
+        }
+    }
+
+    /**
+     * Replay a journal file. A damaged file is reported and, if the journal is writable, set aside.
+     *
+     * @return the number of records replayed, or -1 if the file is damaged
+     */
+    private int replay(Path path) throws IOException {
+        if (!Files.exists(path)) return 0;
+        List<String> lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+        int count = 0, skipped = 0, firstSkipped = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            Record r;
+            try {
+                r = gson.fromJson(decrypt(lines.get(i)), Record.class);
+            } catch (IllegalArgumentException | JsonParseException | GeneralSecurityException | IOException e) {
+                // the last line may be a torn write (crash while appending).
+                // A wrong password would have been detected when opening the vault
+                if (i == lines.size() - 1) break;
+                if (skipped++ == 0) firstSkipped = i + 1;
+                continue;
+            }
+            apply(r);
+            count++;
+        }//end for
+        if (skipped == 0) return count;
+
+        String warning = String.format("%s: line %d is unreadable, %d record(s) skipped", path, firstSkipped, skipped);
+        if (saver != null) {
+            Path aside = aside(path);
+            Files.move(path, aside);
+            warning += String.format(". The journal is kept as %s", aside);
+        }
+        warnings.add(warning);
+        return -1;
+    }
+
+    /**
+     * @return a path to keep a damaged journal, which does not exist yet
+     */
+    private static Path aside(Path path) {
+        Path aside = Paths.get(path + DAMAGED_EXTENSION);
+        for (int i = 2; Files.exists(aside); i++) {
+            aside = Paths.get(path + DAMAGED_EXTENSION + "." + i);
+        }//end for
+        return aside;
+    }
+
+    private void apply(Record r) {
+        if (r.name != null) accounts.remove(r.name);
+        if (OP_PUT.equals(r.op)) accounts.put(r.account.name, r.account);
+    }
+
+    private String encrypt(String json) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            VaultHeader header = key.newHeader(0);
+            header.write(out);
+            out.write(key.encrypt(header).doFinal(json.getBytes(StandardCharsets.UTF_8)));
+            return Base64.getEncoder().encodeToString(out.toByteArray());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private String decrypt(String line) throws IOException, GeneralSecurityException {
+        ByteArrayInputStream in = new ByteArrayInputStream(Base64.getDecoder().decode(line));
+        VaultHeader header = VaultHeader.read(in);
+        byte[] encrypted = new byte[in.available()];
+        in.read(encrypted);
+        return new String(key.unlock(header).doFinal(encrypted), StandardCharsets.UTF_8);
+    }
+
+    private static class Record {
+        String op, name;
+        Account account;
+    }
+}
@@ -1,26 +1,63 @@
 package ch.derlin.easycmd.accounts;
 
 import ch.derlin.easycmd.SerialisationManager;
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
+import ch.derlin.easycmd.doc.LevenshteinDistance;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.TreeMap;
+import java.util.*;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
+ * The accounts, sorted by name.
+ * <p>
+ * Substring searches are backed by a trigram index, built on the first search and kept up to
+ * date by {@link #put(String, Account)}, {@link #putAll(Map)}, {@link #remove(Object)} and
+ * {@link #clear()}: the map must not be modified through its views or iterators, and an account
+ * must not be modified once in the map: put a modified copy instead (see {@link NgramIndex} and
+ * {@link #snapshot()}).
+ * <p>
+ * Searches which have to check more than {@link #getParallelThreshold()} accounts run in parallel,
+ * on the common fork-join pool, over an array of the accounts (in key order, so that the results
+ * stay sorted). The array is built on demand and dropped on every mutation; it also backs the
+ * random access of {@link #all()}.
+ * <p>
+ * The map is not thread-safe; see {@link #buildIndexes()} for concurrent reads, and {@link #snapshot()}
+ * for reads concurrent with the mutations.
+ * <p>
  * date: 16.02.17
  *
  * @author Lin
  */
 public class AccountsMap extends TreeMap<String, Account> {
 
-    // algo for the deserialisation of data
-    private static final String CRYPTO_ALGORITHM = "aes-128-cbc";
+    // the "did you mean" suggestions: names within this edit distance, at most this many
+    public static final int SUGGESTION_DISTANCE = 2, SUGGESTION_LIMIT = 5;
+
+    // number of accounts to check from which the searches run in parallel
+    public static final int DEFAULT_PARALLEL_THRESHOLD = Integer.getInteger("easycmd.parallelThreshold", 20_000);
+
+    // lazily built on the first find
+    private NgramIndex index;
+    // normalized name => first key with this name, lazily built on the first getKeyLower.
+    // Existing vaults may hold several keys with the same name ("Foo" and "foo"): all of them are in duplicateKeys
+    private Map<String, String> normalizedKeys;
+    private Map<String, SortedSet<String>> duplicateKeys;
+    // normalized names by edit distance, lazily built on the first closestNames
+    private NameIndex names;
+    // lazily built on the first parallel search
+    private Account[] ordered;
+    // the current version, kept from the first snapshot on
+    private volatile AccountsSnapshot version;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    // payload flags of the vault (see VaultHeader): kept from the file read, used for the saves
+    private int format;
 
     // ------------------------------------- constructors
     public AccountsMap() {
@@ -34,39 +71,340 @@ public class AccountsMap extends TreeMap<String, Account> {
         });
     }
 
+    // ------------------------------------- mutations
+
+    @Override
+    public Account put(String key, Account value) {
+        Account old = super.put(key, value);
+        ordered = null;
+        if (version != null) version = version.with(key, value);
+        if (normalizedKeys != null && old == null) addNormalized(key);
+        if (names != null && old == null) names.add(key);
+        if (index != null) {
+            if (old != null) index.remove(key, old);
+            index.add(key, value);
+        }
+        return old;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Account> map) {
+        // TreeMap may bulk-build itself from a sorted map, bypassing put
+        for (Map.Entry<? extends String, ? extends Account> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }//end for
+    }
+
+    @Override
+    public Account remove(Object key) {
+        Account old = super.remove(key);
+        if (old != null) {
+            ordered = null;
+            if (version != null) version = version.without((String) key);
+            if (normalizedKeys != null) removeNormalized((String) key);
+            if (names != null) names.remove((String) key);
+        }
+        if (old != null && index != null) {
+            index.remove((String) key, old);
+            if (index.isFragmented()) index = null;
+        }
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        ordered = null;
+        if (version != null) version = AccountsSnapshot.EMPTY;
+        normalizedKeys = null;
+        duplicateKeys = null;
+        names = null;
+        index = null;
+    }
+
     // ------------------------------------- search
 
     public List<String> keys() {
         return keySet().stream().collect(Collectors.toList());
     }
 
+    /**
+     * Get a cursor over all the keys, in order, as they are now: the indexes keep pointing to
+     * the same keys after the map changes (the keys may have been removed since).
+     * The cursor shares the ordered array of the accounts, built once until the next mutation.
+     */
+    public ResultCursor all() {
+        Account[] frozen = ordered();
+        return new ResultCursor() {
+            @Override
+            public int size() {
+                return frozen.length;
+            }
+
+            @Override
+            public String get(int index) {
+                return frozen[index].name;
+            }
+        };
+    }
+
+    /**
+     * @return true if an account has the same name, ignoring case and whitespaces (see {@link #normalize(String)})
+     */
     public boolean containsKeyLower(String s) {
-        final String sLower = s.toLowerCase().replace(" +", " ");
-        for (String k : keys()) {
-            if (k.toLowerCase().replace(" +", " ").equals(sLower)) return true;
+        return getKeyLower(s) != null;
+    }
+
+    /**
+     * Get the key of the account with the same name, ignoring case and whitespaces (see {@link #normalize(String)}).
+     *
+     * @param s the name
+     * @return the key, the first in key order if several accounts match, or null if none does
+     */
+    public String getKeyLower(String s) {
+        if (normalizedKeys == null) {
+            normalizedKeys = new HashMap<>();
+            duplicateKeys = new HashMap<>();
+            for (String key : keySet()) {
+                addNormalized(key);
+            }//end for
+        }
+        return normalizedKeys.get(normalize(s));
+    }
+
+    private void addNormalized(String key) {
+        String name = normalize(key);
+        String first = normalizedKeys.putIfAbsent(name, key);
+        if (first == null) return;
+        SortedSet<String> keys = duplicateKeys.computeIfAbsent(name, n -> new TreeSet<>());
+        keys.add(first);
+        keys.add(key);
+        normalizedKeys.put(name, keys.first());
+    }
+
+    private void removeNormalized(String key) {
+        String name = normalize(key);
+        SortedSet<String> keys = duplicateKeys.get(name);
+        if (keys == null) {
+            normalizedKeys.remove(name, key);
+            return;
+        }
+        // another key with the same name remains
+        keys.remove(key);
+        normalizedKeys.put(name, keys.first());
+        if (keys.size() == 1) duplicateKeys.remove(name);
+    }
+
+    /**
+     * Normalize an account name for duplicate detection: lowercased, trimmed and with
+     * whitespaces runs collapsed into a single space.
+     */
+    public static String normalize(String name) {
+        String lower = name.toLowerCase();
+        StringBuilder builder = new StringBuilder(lower.length());
+        boolean space = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && builder.length() > 0) builder.append(' ');
+                builder.append(c);
+                space = false;
+            }
         }//end for
-        return false;
+        return builder.toString();
     }
 
-    public List<String> find(String... patterns) {
-        return values().stream()
-                .filter(a -> a.contains(patterns))
+    /**
+     * Get the accounts matching the query: by default, the accounts with all the terms in their fields,
+     * ignoring case. See {@link AccountQuery} for the field scopes, the date ranges and the operators.
+     *
+     * @param terms the terms of the query
+     * @return the keys, sorted
+     */
+    public List<String> find(String... terms) {
+        AccountQuery query = AccountQuery.parse(terms);
+        List<String> candidates = index().candidates(query.getLiterals());
+        if (candidates == null) {
+            // terms too short for the index: full scan
+            return scan()
+                    .filter(query)
+                    .map(a -> a.name)
+                    .collect(Collectors.toList());
+        }
+
+        Stream<String> stream = candidates.size() < parallelThreshold ? candidates.stream() : candidates.parallelStream();
+        return stream
+                .filter(k -> query.test(get(k)))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Same as {@link #find(String...)}, but with a full scan instead of the index, which is not built:
+     * cheaper for a single search on a freshly loaded map.
+     */
+    public List<String> findOnce(String... terms) {
+        if (index != null) return find(terms);
+        return scan()
+                .filter(AccountQuery.parse(terms))
                 .map(a -> a.name)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Get the accounts with a field matching the regex, case-insensitively. The literal substrings required
+     * by the regex (see {@link RegexPlan}) select the candidates in the trigram index, or reject the accounts
+     * before the regex runs when they are too short for it; a regex without literals scans all the accounts.
+     */
     public List<String> findR(String pattern) {
-        Pattern p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-        return values().stream()
-                .filter(a -> a.matches(p))
-                .map(a -> a.name)
+        RegexPlan plan = RegexPlan.of(pattern);
+        Pattern p = plan.getPattern();
+        List<String> candidates = plan.getLiterals().length == 0 ? null : index().candidates(plan.getLiterals());
+        if (candidates == null) {
+            return scan()
+                    .filter(a -> plan.mayMatch(a) && a.matches(p))
+                    .map(a -> a.name)
+                    .collect(Collectors.toList());
+        }
+
+        Stream<String> stream = candidates.size() < parallelThreshold ? candidates.stream() : candidates.parallelStream();
+        return stream
+                .filter(k -> get(k).matches(p))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the names closest to the given one, ignoring case and whitespaces (see {@link #normalize(String)}),
+     * for the "did you mean" suggestions. Up to {@link #SUGGESTION_DISTANCE}, the names are looked up in a
+     * {@link NameIndex}, built on the first call and then kept up to date; beyond, they are all scanned.
+     *
+     * @param name        the name, as typed
+     * @param maxDistance the maximum edit distance
+     * @param limit       the maximum number of names
+     * @return the keys, closest first
+     */
+    public List<String> closestNames(String name, int maxDistance, int limit) {
+        if (maxDistance > SUGGESTION_DISTANCE) return scanClosestNames(name, maxDistance, limit);
+        if (names == null) {
+            names = new NameIndex(SUGGESTION_DISTANCE);
+            for (String key : keySet()) names.add(key);
+        }
+        return names.closest(normalize(name), maxDistance, limit);
+    }
+
+    /**
+     * Same as {@link #closestNames(String, int, int)}, but with a full scan instead of the index, which is
+     * not built: cheaper for a single lookup on a freshly loaded map.
+     */
+    public List<String> closestNamesOnce(String name, int maxDistance, int limit) {
+        if (names != null) return closestNames(name, maxDistance, limit);
+        return scanClosestNames(name, maxDistance, limit);
+    }
+
+    private List<String> scanClosestNames(String name, int maxDistance, int limit) {
+        String normalized = normalize(name);
+        List<Map.Entry<Integer, String>> matches = new ArrayList<>();
+        for (String key : keySet()) {
+            int distance = LevenshteinDistance.getDistance(normalized, normalize(key), maxDistance);
+            if (distance <= maxDistance) matches.add(new AbstractMap.SimpleImmutableEntry<>(distance, key));
+        }//end for
+        return matches.stream()
+                .sorted(Map.Entry.comparingByKey())
+                .limit(limit)
+                .map(Map.Entry::getValue)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Build the lazily built lookup structures (search index, normalized names, ordered array) now.
+     * Afterwards, the map can be searched from several threads at once, as long as it is not modified.
+     */
+    public void buildIndexes() {
+        index();
+        getKeyLower("");
+        closestNames("", 0, 0);
+        ordered();
+    }
+
+    /**
+     * Get an immutable view of the current accounts, in O(1) (see {@link AccountsSnapshot}).
+     * <p>
+     * The first call builds the current version, in O(n), from the thread which modifies the map; from then
+     * on, each mutation publishes a new version, and the snapshots can be taken from any thread, without
+     * locks, while the map is being modified.
+     */
+    public AccountsSnapshot snapshot() {
+        AccountsSnapshot current = version;
+        if (current == null) version = current = AccountsSnapshot.of(this);
+        return current;
+    }
+
+    // ------------------------------------- parallel search
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Set the number of accounts to check from which the searches run in parallel.
+     * Use 0 to always run in parallel, {@link Integer#MAX_VALUE} to never.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @return an ordered stream over all the accounts, parallel if the map is big enough
+     */
+    private Stream<Account> scan() {
+        if (size() < parallelThreshold) return values().stream();
+        return Arrays.stream(ordered()).parallel();
+    }
+
+    /**
+     * @return the accounts in key order, as an array
+     */
+    private Account[] ordered() {
+        if (ordered == null) ordered = values().toArray(new Account[0]);
+        return ordered;
+    }
+
+    /**
+     * Get the trigram index, (re)building it if needed.
+     */
+    private NgramIndex index() {
+        if (index == null) {
+            index = new NgramIndex();
+            forEach(index::add);
+        }
+        return index;
+    }
+
     public void save(String filepath, String pass) throws IOException {
         AccountsMap.toEncryptedFile(filepath, pass, this);
     }
 
+    public void save(String filepath, SessionKey key) throws IOException {
+        AccountsMap.toEncryptedFile(filepath, key, values(), format);
+    }
+
+    /**
+     * @return the payload flags of the vault, see {@link VaultHeader#PAYLOAD_FLAGS}
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Set the payload flags used by the next saves.
+     */
+    public void setFormat(int format) {
+        this.format = format;
+    }
+
 
     /* *****************************************************************
      * static utils
@@ -89,13 +427,42 @@ public class AccountsMap extends TreeMap<String, Account> {
     }
 
     public static AccountsMap fromEncryptedFile(String filepath, String password) throws IOException, SerialisationManager.WrongCredentialsException {
-        List<Account> deserialized = (List<Account>) SerialisationManager.deserialize(CRYPTO_ALGORITHM, filepath, password,
-                new TypeToken<List<Account>>() {
-                }.getType());
-        return new AccountsMap(deserialized);
+        return fromEncryptedFile(filepath, new SessionKey(password));
+    }
+
+    public static AccountsMap fromEncryptedFile(String filepath, SessionKey key) throws IOException, SerialisationManager.WrongCredentialsException {
+        // accounts are inserted as they are decrypted and parsed: no intermediate list
+        AccountsMap accounts = new AccountsMap();
+        if (BlockVault.isBlockFile(filepath)) {
+            try (BlockVault vault = BlockVault.open(filepath, key)) {
+                vault.forEach(a -> accounts.put(a.name, a));
+                accounts.format = vault.getFormat();
+            }
+            return accounts;
+        }
+        accounts.format = SerialisationManager.deserializeArray(filepath, key, Account.class,
+                AccountsCodec.INSTANCE, a -> accounts.put(a.name, a)) & VaultHeader.PAYLOAD_FLAGS;
+        return accounts;
     }
 
     public static void toEncryptedFile(String filepath, String password, AccountsMap accounts) throws IOException {
-        SerialisationManager.serialize(new ArrayList(accounts.values()), CRYPTO_ALGORITHM, filepath, password);
+        toEncryptedFile(filepath, new SessionKey(password), accounts.values());
+    }
+
+    public static void toEncryptedFile(String filepath, SessionKey key, Collection<Account> accounts) throws IOException {
+        toEncryptedFile(filepath, key, accounts, 0);
+    }
+
+    public static void toEncryptedFile(String filepath, SessionKey key, Collection<Account> accounts, int format) throws IOException {
+        toEncryptedFile(new FileOutputStream(filepath), key, accounts, format);
+    }
+
+    public static void toEncryptedFile(OutputStream out, SessionKey key, Collection<Account> accounts, int format) throws IOException {
+        if ((format & VaultHeader.FLAG_BLOCKS) != 0) {
+            BlockVault.write(out, key, accounts, format);
+            return;
+        }
+        SerialisationManager.serializeArray(accounts, AccountsCodec.INSTANCE, new BufferedOutputStream(out, 64 * 1024),
+                key, format);
     }
 }
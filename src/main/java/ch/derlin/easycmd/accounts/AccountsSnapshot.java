@@ -0,0 +1,322 @@
+package ch.derlin.easycmd.accounts;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable version of an {@link AccountsMap}, sorted by name (see {@link AccountsMap#snapshot()}).
+ * <p>
+ * The versions are persistent AVL trees: a mutation of the map copies the O(log n) nodes on the path
+ * to the account and shares all the others with the previous version, so that taking a snapshot is
+ * O(1) and a snapshot is never modified. It can be read from any thread, without locks, while the
+ * map goes on changing: background saves and searches see a consistent state.
+ * <p>
+ * The accounts themselves are shared with the map, which replaces them instead of modifying them.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public final class AccountsSnapshot extends AbstractMap<String, Account> {
+
+    static final AccountsSnapshot EMPTY = new AccountsSnapshot(null);
+
+    private final Node root;
+
+    private AccountsSnapshot(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Build the snapshot of a sorted map, in O(n).
+     */
+    static AccountsSnapshot of(SortedMap<String, Account> accounts) {
+        return new AccountsSnapshot(build(accounts.entrySet().iterator(), accounts.size()));
+    }
+
+    /**
+     * @return the snapshot with the account put under the key
+     */
+    AccountsSnapshot with(String key, Account account) {
+        return new AccountsSnapshot(put(root, key, account));
+    }
+
+    /**
+     * @return the snapshot without the key
+     */
+    AccountsSnapshot without(String key) {
+        Node removed = remove(root, key);
+        return removed == root ? this : new AccountsSnapshot(removed);
+    }
+
+    /**
+     * Check the tree: keys in order, sizes and heights up to date, heights of siblings within one.
+     *
+     * @throws IllegalStateException if it is not a valid AVL tree
+     */
+    void checkTree() {
+        check(root, null, null);
+    }
+
+    // ------------------------------------- map
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public Account get(Object key) {
+        Node node = key instanceof String ? find(root, (String) key) : null;
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find(root, (String) key) != null;
+    }
+
+    /**
+     * @return the entries, sorted by key
+     */
+    @Override
+    public Set<Entry<String, Account>> entrySet() {
+        return new AbstractSet<Entry<String, Account>>() {
+            @Override
+            public Iterator<Entry<String, Account>> iterator() {
+                return new InOrder(root);
+            }
+
+            @Override
+            public int size() {
+                return AccountsSnapshot.this.size();
+            }
+        };
+    }
+
+    /**
+     * @return the accounts, sorted by name
+     */
+    @Override
+    public Collection<Account> values() {
+        // a named class: gson serializes anonymous ones as null (see SerialisationManager#serializeArray)
+        return new Values(root);
+    }
+
+    // ------------------------------------- search
+
+    public List<String> keys() {
+        return new ArrayList<>(keySet());
+    }
+
+    /**
+     * Same as {@link AccountsMap#find(String...)}, by scanning the accounts.
+     */
+    public List<String> find(String... terms) {
+        AccountQuery query = AccountQuery.parse(terms);
+        return values().stream()
+                .filter(query)
+                .map(a -> a.name)
+                .collect(Collectors.toList());
+    }
+
+    // ------------------------------------- persistent AVL tree
+
+    private static final class Node implements Entry<String, Account> {
+        final String key;
+        final Account value;
+        final Node left, right;
+        final int height, size;
+
+        Node(String key, Account value, Node left, Node right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Account getValue() {
+            return value;
+        }
+
+        @Override
+        public Account setValue(Account value) {
+            throw new UnsupportedOperationException("snapshots are immutable");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return key.equals(e.getKey()) && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void check(Node node, String min, String max) {
+        if (node == null) return;
+        if ((min != null && node.key.compareTo(min) <= 0) || (max != null && node.key.compareTo(max) >= 0)) {
+            throw new IllegalStateException("key out of order: " + node.key);
+        }
+        check(node.left, min, node.key);
+        check(node.right, node.key, max);
+        if (node.size != size(node.left) + size(node.right) + 1) throw new IllegalStateException("wrong size at " + node.key);
+        if (node.height != Math.max(height(node.left), height(node.right)) + 1) {
+            throw new IllegalStateException("wrong height at " + node.key);
+        }
+        if (Math.abs(height(node.left) - height(node.right)) > 1) throw new IllegalStateException("unbalanced at " + node.key);
+    }
+
+    private static Node find(Node node, String key) {
+        while (node != null) {
+            int c = key.compareTo(node.key);
+            if (c == 0) return node;
+            node = c < 0 ? node.left : node.right;
+        }//end while
+        return null;
+    }
+
+    private static Node put(Node node, String key, Account value) {
+        if (node == null) return new Node(key, value, null, null);
+        int c = key.compareTo(node.key);
+        if (c == 0) return new Node(node.key, value, node.left, node.right);
+        if (c < 0) return balance(node.key, node.value, put(node.left, key, value), node.right);
+        return balance(node.key, node.value, node.left, put(node.right, key, value));
+    }
+
+    private static Node remove(Node node, String key) {
+        if (node == null) return null;
+        int c = key.compareTo(node.key);
+        if (c < 0) {
+            Node left = remove(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        if (c > 0) {
+            Node right = remove(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        }
+        if (node.left == null) return node.right;
+        if (node.right == null) return node.left;
+        Node next = node.right;
+        while (next.left != null) next = next.left;
+        return balance(next.key, next.value, node.left, removeFirst(node.right));
+    }
+
+    private static Node removeFirst(Node node) {
+        if (node.left == null) return node.right;
+        return balance(node.key, node.value, removeFirst(node.left), node.right);
+    }
+
+    /**
+     * @return a node with the children, rotated if their heights differ by more than one
+     */
+    private static Node balance(String key, Account value, Node left, Node right) {
+        if (height(left) > height(right) + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node(left.key, left.value, left.left, new Node(key, value, left.right, right));
+            }
+            Node pivot = left.right;
+            return new Node(pivot.key, pivot.value, new Node(left.key, left.value, left.left, pivot.left),
+                    new Node(key, value, pivot.right, right));
+        }
+        if (height(right) > height(left) + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node(right.key, right.value, new Node(key, value, left, right.left), right.right);
+            }
+            Node pivot = right.left;
+            return new Node(pivot.key, pivot.value, new Node(key, value, left, pivot.left),
+                    new Node(right.key, right.value, pivot.right, right.right));
+        }
+        return new Node(key, value, left, right);
+    }
+
+    /**
+     * @return a balanced tree of the next n sorted entries
+     */
+    private static Node build(Iterator<? extends Entry<String, Account>> entries, int n) {
+        if (n == 0) return null;
+        Node left = build(entries, n / 2);
+        Entry<String, Account> entry = entries.next();
+        Node right = build(entries, n - n / 2 - 1);
+        return new Node(entry.getKey(), entry.getValue(), left, right);
+    }
+
+    private static class Values extends AbstractCollection<Account> {
+        private final Node root;
+
+        Values(Node root) {
+            this.root = root;
+        }
+
+        @Override
+        public Iterator<Account> iterator() {
+            InOrder entries = new InOrder(root);
+            return new Iterator<Account>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Account next() {
+                    return entries.next().getValue();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return AccountsSnapshot.size(root);
+        }
+    }
+
+    private static class InOrder implements Iterator<Entry<String, Account>> {
+        private final Deque<Node> stack = new ArrayDeque<>();
+
+        InOrder(Node root) {
+            push(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Entry<String, Account> next() {
+            if (stack.isEmpty()) throw new NoSuchElementException();
+            Node node = stack.pop();
+            push(node.right);
+            return node;
+        }
+
+        private void push(Node node) {
+            for (; node != null; node = node.left) stack.push(node);
+        }
+    }
+}
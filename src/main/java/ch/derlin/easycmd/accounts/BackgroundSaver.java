@@ -0,0 +1,187 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.crypto.SessionKey;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Single background writer of whole vaults, so that saving never blocks the interactive session.
+ * <p>
+ * Saves are coalesced: a save submitted while another one is still waiting for the same file
+ * replaces it (the newest snapshot wins), so a burst of mutations ends up in a single write. The
+ * writer also waits {@link #COALESCE_DELAY_MS} after the first save of a burst before starting
+ * the write, to let the burst settle.
+ * <p>
+ * Each write goes to a temporary file which is synced to disk and then atomically renamed over
+ * the vault, and the directory is synced so that the rename itself survives a crash: the vault
+ * on disk is always either the old or the new version. Failures are reported
+ * to the error handler; {@link #close()} waits for all the submitted saves.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class BackgroundSaver implements Closeable {
+
+    public static final long COALESCE_DELAY_MS = 100;
+
+    private final Map<Path, Save> queue = new LinkedHashMap<>();
+    private final Consumer<IOException> errorHandler;
+    private final Thread writer;
+    private boolean busy, closed;
+
+    /**
+     * Create and start a saver.
+     *
+     * @param errorHandler called (from the writer thread) when a save fails
+     */
+    public BackgroundSaver(Consumer<IOException> errorHandler) {
+        this.errorHandler = errorHandler;
+        writer = new Thread(this::run, "background-saver");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Schedule the write of the accounts to the given file.
+     *
+     * @param filepath  the vault filepath
+     * @param key       the session key
+     * @param snapshot  the accounts to write; must not be modified afterwards
+     * @param format    the payload flags (see {@link AccountsMap#getFormat()})
+     * @param onSuccess called (from the writer thread) once the file is written, unless the save
+     *                  was superseded by a newer one
+     */
+    public synchronized void submit(String filepath, SessionKey key, Collection<Account> snapshot, int format,
+                                    Runnable onSuccess) {
+        if (closed) throw new IllegalStateException("the saver is closed");
+        Save save = new Save();
+        save.key = key;
+        save.snapshot = snapshot;
+        save.format = format;
+        save.onSuccess = onSuccess;
+        queue.put(Paths.get(filepath).toAbsolutePath(), save);
+        notifyAll();
+    }
+
+    /**
+     * Wait until all the submitted saves are written.
+     */
+    public synchronized void drain() throws InterruptedException {
+        while (busy || !queue.isEmpty()) wait();
+    }
+
+    /**
+     * Wait for the submitted saves, then stop the writer.
+     */
+    @Override
+    public void close() {
+        try {
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    // ------------------------------------- writer thread
+
+    private void run() {
+        while (true) {
+            Path target;
+            Save save;
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty() && !closed) wait();
+                    if (queue.isEmpty()) return;
+                    // let a burst of saves settle: each submit wakes the writer up, wait until the deadline
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COALESCE_DELAY_MS);
+                    for (long left; (left = deadline - System.nanoTime()) > 0; ) {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }//end for
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Iterator<Map.Entry<Path, Save>> it = queue.entrySet().iterator();
+                Map.Entry<Path, Save> next = it.next();
+                it.remove();
+                target = next.getKey();
+                save = next.getValue();
+                busy = true;
+            }
+
+            try {
+                write(target, save);
+                if (save.onSuccess != null) save.onSuccess.run();
+            } catch (IOException e) {
+                errorHandler.accept(e);
+            } catch (RuntimeException e) {
+                errorHandler.accept(new IOException(e));
+            } finally {
+                synchronized (this) {
+                    busy = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void write(Path target, Save save) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp.toFile()) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                // make sure the content is on disk before the rename makes it visible
+                getChannel().force(true);
+                super.close();
+            }
+        };
+        try {
+            AccountsMap.toEncryptedFile(out, save.key, save.snapshot, save.format);
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            syncDirectory(target.getParent());
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Flush the entries of a directory (the rename of the vault) to disk.
+     */
+    private static void syncDirectory(Path directory) {
+        if (directory == null) return;
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened on every platform (windows): the rename is all we can do
+        }
+    }
+
+    private static class Save {
+        SessionKey key;
+        Collection<Account> snapshot;
+        int format;
+        Runnable onSuccess;
+    }
+}
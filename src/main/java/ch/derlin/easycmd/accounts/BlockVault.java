@@ -0,0 +1,389 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.SerialisationManager.WrongCredentialsException;
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
+
+import javax.crypto.Cipher;
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Block-structured vault ({@link VaultHeader#FLAG_BLOCKS}): the accounts, sorted by normalized name
+ * (see {@link AccountsMap#normalize(String)}), are grouped into blocks of about {@link #BLOCK_SIZE}
+ * bytes, each one encrypted on its own. An encrypted index of the blocks ends the file:
+ * <pre>
+ * header | blocks | index | index offset (long) | index length (int)
+ * block: iv | encrypted records (AccountsCodec format, deflated with FLAG_DEFLATE)
+ * index: version (1 byte) | block count (int) | entries, encrypted with the iv of the header
+ * entry: offset (long) | length (int) | record count (int) | first normalized name (int length | UTF-8)
+ * </pre>
+ * Opening the vault only decrypts the index, and {@link #get(String)} maps and decrypts the single
+ * block which can hold the name, so the cost of a lookup does not depend on the size of the vault.
+ * {@link #forEach(Consumer)} reads the blocks one after the other instead: a mapping is only released
+ * by the garbage collector, and would keep the file from being replaced on some systems.
+ * Accounts with the same normalized name are never split across two blocks.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class BlockVault implements Closeable {
+
+    // cleartext size from which a block is closed
+    public static final int BLOCK_SIZE = 32 * 1024;
+
+    private static final int INDEX_VERSION = 1;
+    private static final int FOOTER_LENGTH = Long.BYTES + Integer.BYTES;
+    // magic, version, flags, kdf, work factor, salt and iv of at most 255 bytes
+    private static final int MAX_HEADER_LENGTH = 1024;
+
+    private final FileChannel channel;
+    private final SessionKey key;
+    private final VaultHeader header;
+    private final Block[] blocks;
+
+    /**
+     * Check if the file is a block-structured vault, from its header only.
+     */
+    public static boolean isBlockFile(String filepath) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(filepath), 256)) {
+            return VaultHeader.isPresent(in) && VaultHeader.read(in).hasFlag(VaultHeader.FLAG_BLOCKS);
+        }
+    }
+
+    /**
+     * Open a block-structured vault and decrypt its index.
+     *
+     * @param filepath the vault filepath
+     * @param key      the session key
+     * @return the vault, to close after use
+     * @throws WrongCredentialsException if the index cannot be decrypted with this key
+     * @throws IOException               if the file is not a block-structured vault
+     */
+    public static BlockVault open(String filepath, SessionKey key) throws IOException, WrongCredentialsException {
+        FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ);
+        try {
+            return new BlockVault(channel, key);
+        } catch (IOException | WrongCredentialsException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private BlockVault(FileChannel channel, SessionKey key) throws IOException, WrongCredentialsException {
+        this.channel = channel;
+        this.key = key;
+        long length = channel.size();
+
+        ByteBuffer head = readAt(0, (int) Math.min(length, MAX_HEADER_LENGTH));
+        InputStream in = new BufferInputStream(head);
+        if (!VaultHeader.isPresent(in)) throw new IOException("not a block-structured vault");
+        header = VaultHeader.read(in);
+        if (!header.hasFlag(VaultHeader.FLAG_BLOCKS)) throw new IOException("not a block-structured vault");
+        int start = head.position();
+
+        long footer = length - FOOTER_LENGTH;
+        ByteBuffer footerBytes = footer < start ? null : readAt(footer, FOOTER_LENGTH);
+        long indexOffset = footerBytes == null ? -1 : footerBytes.getLong();
+        int indexLength = footerBytes == null ? -1 : footerBytes.getInt();
+        if (indexOffset < start || indexLength < 0 || indexOffset + indexLength != footer) {
+            throw new IOException("truncated or corrupted vault");
+        }
+
+        try {
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+                    decrypt(header, readAt(indexOffset, indexLength))));
+            if (index.readUnsignedByte() != INDEX_VERSION) throw new StreamCorruptedException("invalid index");
+            int count = index.readInt();
+            if (count < 0 || count > indexLength) throw new StreamCorruptedException("invalid block count");
+            blocks = new Block[count];
+            for (int i = 0; i < count; i++) {
+                Block block = new Block();
+                block.offset = index.readLong();
+                block.length = index.readInt();
+                block.count = index.readInt();
+                int firstLength = index.readInt();
+                if (firstLength < 0 || firstLength > indexLength) throw new StreamCorruptedException("invalid index");
+                byte[] first = new byte[firstLength];
+                index.readFully(first);
+                block.first = new String(first, StandardCharsets.UTF_8);
+                if (block.offset < start || block.length < SessionKey.IV_LENGTH
+                        || block.offset + block.length > indexOffset) {
+                    throw new StreamCorruptedException("invalid block " + i);
+                }
+                blocks[i] = block;
+            }//end for
+        } catch (GeneralSecurityException | StreamCorruptedException | EOFException e) {
+            // garbage index: the key was wrong
+            throw new WrongCredentialsException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the payload flags of the vault, see {@link VaultHeader#PAYLOAD_FLAGS}
+     */
+    public int getFormat() {
+        return header.getFlags() & VaultHeader.PAYLOAD_FLAGS;
+    }
+
+    /**
+     * @return the number of accounts
+     */
+    public int size() {
+        int size = 0;
+        for (Block block : blocks) size += block.count;
+        return size;
+    }
+
+    /**
+     * Get the account with this name, ignoring case and whitespaces, mapping and decrypting a single block.
+     *
+     * @param name the name
+     * @return the account, or null if none has this name
+     */
+    public Account get(String name) throws IOException, WrongCredentialsException {
+        String normalized = AccountsMap.normalize(name);
+        // the last block starting at or before the name
+        int low = 0, high = blocks.length - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blocks[mid].first.compareTo(normalized) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }//end while
+        if (found < 0) return null;
+
+        Account[] match = new Account[1];
+        Block block = blocks[found];
+        read(block, channel.map(FileChannel.MapMode.READ_ONLY, block.offset, block.length), a -> {
+            if (match[0] == null && AccountsMap.normalize(a.name).equals(normalized)) match[0] = a;
+        });
+        return match[0];
+    }
+
+    /**
+     * Decrypt all the blocks in order, handing each account to the consumer.
+     */
+    public void forEach(Consumer<Account> consumer) throws IOException, WrongCredentialsException {
+        for (Block block : blocks) read(block, readAt(block.offset, block.length), consumer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the blocks mapped by get are released with their buffers
+        channel.close();
+    }
+
+    /* *****************************************************************
+     * writing
+     * ****************************************************************/
+
+    /**
+     * Write the accounts as a block-structured vault. The stream is closed.
+     *
+     * @param stream   where to write the vault
+     * @param key      the session key
+     * @param accounts the accounts
+     * @param format   the payload flags, with {@link VaultHeader#FLAG_BLOCKS}
+     */
+    public static void write(OutputStream stream, SessionKey key, Collection<Account> accounts, int format)
+            throws IOException {
+        // the normalized names are computed once, for the sort and the boundaries
+        List<Map.Entry<String, Account>> sorted = new ArrayList<>(accounts.size());
+        for (Account a : accounts) sorted.add(new AbstractMap.SimpleImmutableEntry<>(AccountsMap.normalize(a.name), a));
+        sorted.sort(Map.Entry.comparingByKey());
+
+        Deflater deflater = (format & VaultHeader.FLAG_DEFLATE) != 0 ? new Deflater(Deflater.BEST_SPEED) : null;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            VaultHeader header = key.newHeader(format);
+            header.write(out);
+
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream entries = new DataOutputStream(index);
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            List<Account> block = new ArrayList<>();
+            int blockCount = 0, size = 0;
+
+            for (int i = 0; i < sorted.size(); i++) {
+                block.add(sorted.get(i).getValue());
+                size += estimate(sorted.get(i).getValue());
+                boolean last = i == sorted.size() - 1;
+                if (!last && (size < BLOCK_SIZE || sorted.get(i + 1).getKey().equals(sorted.get(i).getKey()))) {
+                    continue;
+                }
+
+                // close the block
+                plain.reset();
+                if (deflater == null) {
+                    AccountsCodec.INSTANCE.write(plain, block);
+                } else {
+                    DeflaterOutputStream deflated = new DeflaterOutputStream(plain, deflater);
+                    AccountsCodec.INSTANCE.write(deflated, block);
+                    deflated.finish();
+                    deflater.reset();
+                }
+                VaultHeader blockHeader = key.newHeader(format);
+                byte[] encrypted = key.encrypt(blockHeader).doFinal(plain.toByteArray());
+
+                entries.writeLong(out.size());
+                entries.writeInt(blockHeader.getIv().length + encrypted.length);
+                entries.writeInt(block.size());
+                writeString(entries, sorted.get(i - block.size() + 1).getKey());
+                out.write(blockHeader.getIv());
+                out.write(encrypted);
+
+                blockCount++;
+                block.clear();
+                size = 0;
+            }//end for
+
+            ByteArrayOutputStream indexPlain = new ByteArrayOutputStream(index.size() + 5);
+            DataOutputStream indexOut = new DataOutputStream(indexPlain);
+            indexOut.writeByte(INDEX_VERSION);
+            indexOut.writeInt(blockCount);
+            index.writeTo(indexOut);
+            byte[] encrypted = key.encrypt(header).doFinal(indexPlain.toByteArray());
+
+            long indexOffset = out.size();
+            out.write(encrypted);
+            out.writeLong(indexOffset);
+            out.writeInt(encrypted.length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    // ------------------------------------- private utils
+
+    /**
+     * Decrypt a block.
+     *
+     * @param bytes the bytes of the block: iv and encrypted records
+     */
+    private void read(Block block, ByteBuffer bytes, Consumer<Account> consumer) throws IOException, WrongCredentialsException {
+        byte[] iv = new byte[SessionKey.IV_LENGTH];
+        bytes.get(iv);
+        try {
+            byte[] plain = decrypt(header.withIv(iv), bytes);
+            InputStream in = new ByteArrayInputStream(plain);
+            if (header.hasFlag(VaultHeader.FLAG_DEFLATE)) in = new InflaterInputStream(in);
+            int[] count = new int[1];
+            AccountsCodec.INSTANCE.read(in, a -> {
+                count[0]++;
+                consumer.accept(a);
+            });
+            if (count[0] != block.count) {
+                throw new StreamCorruptedException(String.format("%d records in a block of %d", count[0], block.count));
+            }
+        } catch (GeneralSecurityException | StreamCorruptedException | EOFException | ZipException e) {
+            throw new WrongCredentialsException(e.getMessage());
+        }
+    }
+
+    private byte[] decrypt(VaultHeader parameters, ByteBuffer in) throws GeneralSecurityException {
+        Cipher cipher = key.unlock(parameters);
+        ByteBuffer out = ByteBuffer.allocate(cipher.getOutputSize(in.remaining()));
+        int n = cipher.doFinal(in, out);
+        return n == out.capacity() ? out.array() : Arrays.copyOf(out.array(), n);
+    }
+
+    /**
+     * Read bytes at this position of the file, without moving the position of the channel.
+     *
+     * @return a heap buffer holding the bytes, ready to be read
+     */
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new EOFException("truncated vault");
+        }//end while
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    // size of the account in the block, roughly
+    private static int estimate(Account a) {
+        int size = 7;
+        for (String s : new String[]{a.name, a.pseudo, a.email, a.notes, a.creationDate, a.modificationDate}) {
+            if (s != null) size += s.length();
+        }//end for
+        if (a.getSealedPassword() != null) size += a.getSealedPassword().length;
+        return size;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static class Block {
+        long offset;
+        int length;
+        int count;
+        String first;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            ((Buffer) buffer).mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            ((Buffer) buffer).reset();
+        }
+    }
+}
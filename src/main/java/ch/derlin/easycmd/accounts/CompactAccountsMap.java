@@ -0,0 +1,427 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.doc.LevenshteinDistance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Read-only copy of an {@link AccountsMap}, laid out in columns, for the resident sessions (see the agent).
+ * <p>
+ * A TreeMap of accounts costs, per account, a tree node, the account and a dozen strings with their
+ * arrays (including the lowercased fields). Here, the fields of all the accounts are UTF-8 bytes in a
+ * single array, addressed by int offsets, the records sorted by name; the sealed passwords stay sealed.
+ * Besides, a hash table of the normalized names answers {@link #getKeyLower(String)}. There is no
+ * other object per account: the {@link Account}s are views, decoded on each access, and their
+ * modifications are not written back.
+ * <p>
+ * {@link #find(String...)} takes the same queries as {@link AccountsMap#find(String...)}, without the
+ * trigram index: the ASCII terms required by the query are first looked up in the raw bytes of each
+ * record, ignoring ASCII case, and only the records containing them all are decoded and checked
+ * (records with non-ASCII characters are always checked, since their lowercase is not a byte fold).
+ * <p>
+ * The map is immutable, hence thread-safe. The sub maps share the columns of their parent.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class CompactAccountsMap extends AbstractMap<String, Account> implements SortedMap<String, Account> {
+
+    // the fields of a record, in this order; the searchable ones (see Account#lowerFields) first
+    private static final int NAME = 0, PSEUDO = 1, EMAIL = 2, NOTES = 3, PASSWORD = 4, CREATED = 5, MODIFIED = 6;
+    private static final int FIELDS = 7;
+
+    private final Columns columns;
+    // the records of this (sub) map
+    private final int from, to;
+
+    private CompactAccountsMap(Columns columns, int from, int to) {
+        this.columns = columns;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Copy the accounts.
+     *
+     * @param accounts the accounts, under their name
+     * @return the copy
+     */
+    public static CompactAccountsMap of(Map<String, Account> accounts) {
+        Collection<Account> sorted = accounts instanceof SortedMap && ((SortedMap<String, Account>) accounts).comparator() == null ?
+                accounts.values() : new TreeMap<>(accounts).values();
+        Columns columns = new Columns(sorted);
+        return new CompactAccountsMap(columns, 0, columns.size);
+    }
+
+    // ------------------------------------- map
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    /**
+     * @return a view of the account, or null
+     */
+    @Override
+    public Account get(Object key) {
+        if (!(key instanceof String)) return null;
+        int r = indexOf((String) key);
+        return r < 0 ? null : columns.account(r);
+    }
+
+    @Override
+    public Set<Entry<String, Account>> entrySet() {
+        return new AbstractSet<Entry<String, Account>>() {
+            @Override
+            public Iterator<Entry<String, Account>> iterator() {
+                return new Records<Entry<String, Account>>() {
+                    @Override
+                    Entry<String, Account> get(int r) {
+                        Account a = columns.account(r);
+                        return new SimpleImmutableEntry<>(a.name, a);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactAccountsMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Records<String>() {
+                    @Override
+                    String get(int r) {
+                        return columns.string(r, NAME);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactAccountsMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Collection<Account> values() {
+        return new AbstractCollection<Account>() {
+            @Override
+            public Iterator<Account> iterator() {
+                return new Records<Account>() {
+                    @Override
+                    Account get(int r) {
+                        return columns.account(r);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CompactAccountsMap.this.size();
+            }
+        };
+    }
+
+    // ------------------------------------- sorted map
+
+    @Override
+    public Comparator<? super String> comparator() {
+        return null;
+    }
+
+    @Override
+    public String firstKey() {
+        if (from == to) throw new NoSuchElementException();
+        return columns.string(from, NAME);
+    }
+
+    @Override
+    public String lastKey() {
+        if (from == to) throw new NoSuchElementException();
+        return columns.string(to - 1, NAME);
+    }
+
+    @Override
+    public SortedMap<String, Account> subMap(String fromKey, String toKey) {
+        if (fromKey.compareTo(toKey) > 0) throw new IllegalArgumentException("fromKey > toKey");
+        return new CompactAccountsMap(columns, lowerBound(fromKey), Math.max(lowerBound(fromKey), lowerBound(toKey)));
+    }
+
+    @Override
+    public SortedMap<String, Account> headMap(String toKey) {
+        return new CompactAccountsMap(columns, from, lowerBound(toKey));
+    }
+
+    @Override
+    public SortedMap<String, Account> tailMap(String fromKey) {
+        return new CompactAccountsMap(columns, lowerBound(fromKey), to);
+    }
+
+    // ------------------------------------- search
+
+    public List<String> keys() {
+        return new ArrayList<>(keySet());
+    }
+
+    /**
+     * Same as {@link AccountsMap#find(String...)}.
+     */
+    public List<String> find(String... terms) {
+        AccountQuery query = AccountQuery.parse(terms);
+        // the ascii terms can be looked up in the raw bytes
+        byte[][] literals = Arrays.stream(query.getLiterals())
+                .filter(CompactAccountsMap::isAscii)
+                .map(s -> s.getBytes(StandardCharsets.US_ASCII))
+                // the longest is the most selective
+                .sorted(Comparator.comparingInt((byte[] b) -> -b.length))
+                .toArray(byte[][]::new);
+
+        IntStream records = IntStream.range(from, to);
+        if (size() >= AccountsMap.DEFAULT_PARALLEL_THRESHOLD) records = records.parallel();
+        return records
+                .filter(r -> columns.mayContain(r, literals) && query.test(columns.account(r)))
+                .mapToObj(r -> columns.string(r, NAME))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return true if an account has the same name, ignoring case and whitespaces (see {@link AccountsMap#normalize(String)})
+     */
+    public boolean containsKeyLower(String s) {
+        return getKeyLower(s) != null;
+    }
+
+    /**
+     * Same as {@link AccountsMap#getKeyLower(String)}.
+     */
+    public String getKeyLower(String s) {
+        int r = columns.indexOfNormalized(AccountsMap.normalize(s), from, to);
+        return r < 0 ? null : columns.string(r, NAME);
+    }
+
+    /**
+     * Same as {@link AccountsMap#closestNames(String, int, int)}, by scanning the names.
+     */
+    public List<String> closestNames(String name, int maxDistance, int limit) {
+        String normalized = AccountsMap.normalize(name);
+        List<Map.Entry<Integer, String>> matches = new ArrayList<>();
+        for (int r = from; r < to; r++) {
+            String key = columns.string(r, NAME);
+            int distance = LevenshteinDistance.getDistance(normalized, AccountsMap.normalize(key), maxDistance);
+            if (distance <= maxDistance) matches.add(new AbstractMap.SimpleImmutableEntry<>(distance, key));
+        }//end for
+        return matches.stream()
+                .sorted(Map.Entry.comparingByKey())
+                .limit(limit)
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+    }
+
+    // ------------------------------------- private utils
+
+    /**
+     * @return the record of the key, or -1
+     */
+    private int indexOf(String key) {
+        int r = lowerBound(key);
+        return r < to && columns.string(r, NAME).equals(key) ? r : -1;
+    }
+
+    /**
+     * @return the first record of this map whose name is not before the key
+     */
+    private int lowerBound(String key) {
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (columns.string(mid, NAME).compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }//end while
+        return low;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) return false;
+        }//end for
+        return true;
+    }
+
+    /**
+     * Iterates over the records of this map.
+     */
+    private abstract class Records<T> implements Iterator<T> {
+        int next = from;
+
+        abstract T get(int r);
+
+        @Override
+        public boolean hasNext() {
+            return next < to;
+        }
+
+        @Override
+        public T next() {
+            if (next >= to) throw new NoSuchElementException();
+            return get(next++);
+        }
+    }
+
+    /**
+     * The columns, shared by a map and its sub maps.
+     */
+    private static class Columns {
+        final int size;
+        // the fields of all the records
+        final byte[] data;
+        // start of the field f of the record r at [r * FIELDS + f], end at the next one
+        final int[] offsets;
+        // null fields, at r * FIELDS + f
+        final BitSet nulls = new BitSet();
+        // records with non-ascii bytes in their searchable fields
+        final BitSet nonAscii = new BitSet();
+        // open addressing on the normalized names, duplicates included: record + 1, 0 if empty
+        final int[] normalized;
+
+        Columns(Collection<Account> accounts) {
+            size = accounts.size();
+            offsets = new int[size * FIELDS + 1];
+            // exact for ascii text, grown otherwise
+            long estimate = 0;
+            for (Account a : accounts) {
+                for (String s : new String[]{a.name, a.pseudo, a.email, a.notes, a.creationDate, a.modificationDate}) {
+                    if (s != null) estimate += s.length();
+                }//end for
+                if (a.getSealedPassword() != null) estimate += a.getSealedPassword().length;
+            }//end for
+            byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, estimate))];
+            int length = 0, r = 0;
+            for (Account a : accounts) {
+                String[] fields = {a.name, a.pseudo, a.email, a.notes, null, a.creationDate, a.modificationDate};
+                for (int f = 0; f < FIELDS; f++) {
+                    offsets[r * FIELDS + f] = length;
+                    byte[] value = f == PASSWORD ? a.getSealedPassword() :
+                            fields[f] == null ? null : fields[f].getBytes(StandardCharsets.UTF_8);
+                    if (value == null) {
+                        nulls.set(r * FIELDS + f);
+                        continue;
+                    }
+                    if (length + value.length > bytes.length) {
+                        bytes = Arrays.copyOf(bytes, Math.max(length + value.length, bytes.length + (bytes.length >> 1)));
+                    }
+                    System.arraycopy(value, 0, bytes, length, value.length);
+                    if (f <= NOTES && !isAscii(bytes, length, length + value.length)) nonAscii.set(r);
+                    length += value.length;
+                }//end for
+                r++;
+            }//end for
+            offsets[size * FIELDS] = length;
+            data = Arrays.copyOf(bytes, length);
+
+            normalized = new int[Math.max(16, Integer.highestOneBit(Math.max(1, size)) * 4)];
+            for (r = 0; r < size; r++) {
+                int slot = slot(AccountsMap.normalize(string(r, NAME)));
+                while (normalized[slot] != 0) slot = (slot + 1) & (normalized.length - 1);
+                normalized[slot] = r + 1;
+            }//end for
+        }
+
+        String string(int r, int f) {
+            int i = r * FIELDS + f;
+            if (nulls.get(i)) return null;
+            return new String(data, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+        }
+
+        Account account(int r) {
+            Account a = new Account();
+            a.name = string(r, NAME);
+            a.pseudo = string(r, PSEUDO);
+            a.email = string(r, EMAIL);
+            a.notes = string(r, NOTES);
+            int i = r * FIELDS + PASSWORD;
+            a.setSealedPassword(nulls.get(i) ? null : Arrays.copyOfRange(data, offsets[i], offsets[i + 1]));
+            a.creationDate = string(r, CREATED);
+            a.modificationDate = string(r, MODIFIED);
+            return a;
+        }
+
+        /**
+         * @return the first record in [from, to) with the normalized name, as {@link AccountsMap#getKeyLower(String)}
+         * returns the first key, or -1
+         */
+        int indexOfNormalized(String name, int from, int to) {
+            int first = -1;
+            for (int slot = slot(name); normalized[slot] != 0; slot = (slot + 1) & (normalized.length - 1)) {
+                int r = normalized[slot] - 1;
+                if (r >= from && r < to && (first < 0 || r < first) && AccountsMap.normalize(string(r, NAME)).equals(name)) {
+                    first = r;
+                }
+            }//end for
+            return first;
+        }
+
+        /**
+         * @param literals lowercased ascii strings
+         * @return false if the searchable fields of the record cannot contain all the literals
+         */
+        boolean mayContain(int r, byte[][] literals) {
+            if (nonAscii.get(r)) return true;
+            int start = offsets[r * FIELDS + NAME], end = offsets[r * FIELDS + NOTES + 1];
+            for (byte[] literal : literals) {
+                if (!containsIgnoreAsciiCase(start, end, literal)) return false;
+            }//end for
+            return true;
+        }
+
+        private boolean containsIgnoreAsciiCase(int start, int end, byte[] literal) {
+            // the fields are contiguous: a literal across two fields is only a false positive
+            if (literal.length == 0) return true;
+            byte first = literal[0], upper = first >= 'a' && first <= 'z' ? (byte) (first - ('a' - 'A')) : first;
+            for (int i = start, last = end - literal.length; i <= last; i++) {
+                byte b = data[i];
+                if (b != first && b != upper) continue;
+                int j = 1;
+                while (j < literal.length && lower(data[i + j]) == literal[j]) j++;
+                if (j == literal.length) return true;
+            }//end for
+            return false;
+        }
+
+        private int slot(String normalizedName) {
+            int h = normalizedName.hashCode();
+            return (h ^ (h >>> 16)) & (normalized.length - 1);
+        }
+
+        private static byte lower(byte b) {
+            return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+
+        private static boolean isAscii(byte[] bytes, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (bytes[i] < 0) return false;
+            }//end for
+            return true;
+        }
+    }
+}
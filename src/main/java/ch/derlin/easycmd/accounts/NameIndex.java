@@ -0,0 +1,113 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.doc.LevenshteinDistance;
+
+import java.util.*;
+
+/**
+ * Index of the normalized account names (see {@link AccountsMap#normalize(String)}) for the "did you mean"
+ * suggestions: finds the names within a small edit distance of a query without computing the distance
+ * to every name.
+ * <p>
+ * Pigeonhole filter: each name is cut into maxDistance + 1 segments. k edits touch at most k of them,
+ * so a name within k of the query has a segment which appears unchanged in the query, moved by at
+ * most k positions. The index maps (name length, segment number, segment) to the names; a search looks
+ * up the substrings of the query at the possible positions, then checks the few candidates with the
+ * bounded {@link LevenshteinDistance#getDistance(String, String, int)}.
+ * <p>
+ * The segments are hashed: a collision only adds a candidate, which the check then rejects.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+class NameIndex {
+
+    private final int maxDistance;
+    // (length, segment number, segment hash) => keys
+    private final Map<Long, List<String>> segments = new HashMap<>();
+
+    /**
+     * @param maxDistance the largest distance the index can answer
+     */
+    NameIndex(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    int getMaxDistance() {
+        return maxDistance;
+    }
+
+    // ------------------------------------- maintenance
+
+    void add(String key) {
+        String name = AccountsMap.normalize(key);
+        for (int i = 0; i <= maxDistance; i++) {
+            segments.computeIfAbsent(segment(name, i), s -> new ArrayList<>(1)).add(key);
+        }//end for
+    }
+
+    void remove(String key) {
+        String name = AccountsMap.normalize(key);
+        for (int i = 0; i <= maxDistance; i++) {
+            long segment = segment(name, i);
+            List<String> keys = segments.get(segment);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) segments.remove(segment);
+        }//end for
+    }
+
+    // ------------------------------------- search
+
+    /**
+     * Get the keys whose normalized name is within the given distance of the normalized query.
+     *
+     * @param query    the normalized query
+     * @param distance the maximum distance, at most {@link #getMaxDistance()}
+     * @param limit    the maximum number of keys
+     * @return the keys, closest first, then in key order
+     */
+    List<String> closest(String query, int distance, int limit) {
+        if (distance > maxDistance) throw new IllegalArgumentException("distance above " + maxDistance);
+
+        Set<String> candidates = new HashSet<>();
+        for (int length = Math.max(0, query.length() - distance); length <= query.length() + distance; length++) {
+            for (int i = 0; i <= maxDistance; i++) {
+                int start = start(length, i), end = start(length, i + 1);
+                for (int shift = -distance; shift <= distance; shift++) {
+                    int from = start + shift;
+                    if (from < 0 || from + end - start > query.length()) continue;
+                    List<String> keys = segments.get(segment(length, i, query, from, from + end - start));
+                    if (keys != null) candidates.addAll(keys);
+                }//end for
+            }//end for
+        }//end for
+
+        List<Map.Entry<Integer, String>> matches = new ArrayList<>();
+        for (String key : candidates) {
+            int d = LevenshteinDistance.getDistance(query, AccountsMap.normalize(key), distance);
+            if (d <= distance) matches.add(new AbstractMap.SimpleImmutableEntry<>(d, key));
+        }//end for
+        matches.sort(Map.Entry.<Integer, String>comparingByKey().thenComparing(Map.Entry.comparingByValue()));
+
+        List<String> closest = new ArrayList<>(Math.min(limit, matches.size()));
+        for (int i = 0; i < matches.size() && i < limit; i++) closest.add(matches.get(i).getValue());
+        return closest;
+    }
+
+    // ------------------------------------- private utils
+
+    // start of the segment i of a name of this length
+    private int start(int length, int i) {
+        return i * length / (maxDistance + 1);
+    }
+
+    private long segment(String name, int i) {
+        return segment(name.length(), i, name, start(name.length(), i), start(name.length(), i + 1));
+    }
+
+    private static long segment(int length, int i, String s, int from, int to) {
+        int hash = 0;
+        for (int c = from; c < to; c++) hash = 31 * hash + s.charAt(c);
+        return ((long) length << 40) | ((long) i << 32) | (hash & 0xFFFFFFFFL);
+    }
+}
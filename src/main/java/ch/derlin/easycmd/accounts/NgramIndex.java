@@ -0,0 +1,178 @@
+package ch.derlin.easycmd.accounts;
+
+import java.util.*;
+
+/**
+ * Trigram inverted index over the searchable fields of the accounts (name, pseudo, email, notes).
+ * <p>
+ * Every distinct sequence of three (lowercased) characters of a field points to the accounts
+ * containing it. A substring of at least three characters can only appear in an account indexed
+ * under all of its trigrams, so intersecting their postings gives a (small) superset of the
+ * matches, which is then checked exactly with {@link Account#containsLower(String...)}.
+ * Shorter patterns cannot be resolved by the index: see {@link #candidates(String...)}.
+ * <p>
+ * Accounts are identified by an int id, allocated in increasing order, so that postings are sorted
+ * int arrays: indexing appends, intersecting is a merge. Ids are not reused; the index is rebuilt
+ * by its owner when too many of them are dead (see {@link #isFragmented()}).
+ * The grams of an account are recomputed on removal: an account must not be modified while indexed.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+class NgramIndex {
+
+    static final int N = 3;
+
+    private final Map<Long, Posting> postings = new HashMap<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] keys = new String[16];
+    private int nextId;
+
+    // ------------------------------------- maintenance
+
+    /**
+     * Index the account under the given key. The key must not be indexed already.
+     */
+    void add(String key, Account account) {
+        int id = nextId++;
+        if (id == keys.length) keys = Arrays.copyOf(keys, keys.length * 2);
+        keys[id] = key;
+        ids.put(key, id);
+        for (long gram : grams(account)) {
+            postings.computeIfAbsent(gram, g -> new Posting()).add(id);
+        }//end for
+    }
+
+    /**
+     * Remove the account indexed under the given key.
+     */
+    void remove(String key, Account account) {
+        Integer id = ids.remove(key);
+        if (id == null) return;
+        keys[id] = null;
+        for (long gram : grams(account)) {
+            Posting posting = postings.get(gram);
+            if (posting != null && posting.remove(id) && posting.size == 0) postings.remove(gram);
+        }//end for
+    }
+
+    /**
+     * @return true if more than half of the allocated ids belong to removed accounts
+     */
+    boolean isFragmented() {
+        return nextId > 1024 && ids.size() < nextId / 2;
+    }
+
+    // ------------------------------------- search
+
+    /**
+     * Get the keys of the accounts which may contain all the patterns.
+     *
+     * @param patterns the lowercased patterns
+     * @return the candidate keys (unordered), or null if no pattern is long enough to use the index
+     */
+    List<String> candidates(String... patterns) {
+        List<Posting> lists = new ArrayList<>();
+        for (String pattern : patterns) {
+            for (int i = 0; i + N <= pattern.length(); i++) {
+                Posting posting = postings.get(gram(pattern, i));
+                if (posting == null) return Collections.emptyList();
+                lists.add(posting);
+            }//end for
+        }//end for
+
+        if (lists.isEmpty()) return null;
+
+        // intersect, starting from the most selective posting
+        lists.sort(Comparator.comparingInt(p -> p.size));
+        int[] result = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+        int size = result.length;
+        for (int i = 1; i < lists.size() && size > 0; i++) {
+            size = lists.get(i).retain(result, size);
+        }//end for
+
+        List<String> candidates = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            candidates.add(keys[result[i]]);
+        }//end for
+        return candidates;
+    }
+
+    // ------------------------------------- private utils
+
+    /**
+     * @return the distinct grams of the account fields
+     */
+    private static long[] grams(Account account) {
+        String[] fields = account.lowerFields();
+        int length = 0;
+        for (String field : fields) {
+            length += Math.max(0, field.length() - N + 1);
+        }//end for
+
+        long[] grams = new long[length];
+        int n = 0;
+        for (String field : fields) {
+            for (int i = 0; i + N <= field.length(); i++) {
+                grams[n++] = gram(field, i);
+            }//end for
+        }//end for
+
+        // dedupe
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || grams[distinct - 1] != grams[i]) grams[distinct++] = grams[i];
+        }//end for
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    private static long gram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /**
+     * A sorted list of ids.
+     */
+    private static class Posting {
+        int[] ids = new int[2];
+        int size;
+
+        void add(int id) {
+            // ids are allocated in increasing order
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        boolean remove(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i < 0) return false;
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            size--;
+            return true;
+        }
+
+        /**
+         * Keep in the sorted array only the ids present in this posting.
+         *
+         * @return the new size of the array
+         */
+        int retain(int[] sorted, int length) {
+            // much bigger posting: binary search instead of walking it
+            boolean search = size > length * 16;
+            int kept = 0, j = 0;
+            for (int i = 0; i < length && j < size; i++) {
+                int id = sorted[i];
+                if (search) {
+                    int k = Arrays.binarySearch(ids, j, size, id);
+                    j = k < 0 ? -k - 1 : k;
+                } else {
+                    while (j < size && ids[j] < id) j++;
+                }
+                if (j < size && ids[j] == id) sorted[kept++] = id;
+            }//end for
+            return kept;
+        }
+    }
+}
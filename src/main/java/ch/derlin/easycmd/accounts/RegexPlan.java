@@ -0,0 +1,318 @@
+package ch.derlin.easycmd.accounts;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled {@link AccountsMap#findR(String)} query: the pattern, and the literal substrings that every match
+ * must contain, which reject most of the accounts (through the {@link NgramIndex} or
+ * {@link Account#containsLower(String...)}) before the regex runs.
+ * <p>
+ * The literals are extracted by a conservative walk of the regex: runs of plain ASCII characters which
+ * are neither optional nor inside an alternation. Anything the walk does not understand (flags, back
+ * references, unicode escapes, ...) only yields fewer literals, down to none: the plan then falls back
+ * to the full scan. Only ASCII characters are kept, because {@link Pattern#CASE_INSENSITIVE} folds them
+ * the same way as {@link String#toLowerCase()} (see {@code foldable}).
+ * <p>
+ * Plans are cached (see {@link #of(String)}), so that a repeated search does not compile its pattern again.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+class RegexPlan {
+
+    static final int CACHE_SIZE = 64;
+
+    // least recently used first
+    private static final Map<String, RegexPlan> CACHE = new LinkedHashMap<String, RegexPlan>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RegexPlan> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Pattern pattern;
+    private final String[] literals;
+
+    private RegexPlan(String regex) {
+        this.pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        this.literals = new LiteralExtractor(regex).extract();
+    }
+
+    /**
+     * Get the plan of a regex, from the cache if it was used recently.
+     *
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+     */
+    static RegexPlan of(String regex) {
+        synchronized (CACHE) {
+            RegexPlan plan = CACHE.get(regex);
+            if (plan == null) {
+                plan = new RegexPlan(regex);
+                CACHE.put(regex, plan);
+            }
+            return plan;
+        }
+    }
+
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the lowercased substrings which any account matching the pattern contains, possibly none
+     */
+    String[] getLiterals() {
+        return literals;
+    }
+
+    /**
+     * @return true if the account may match: it contains all the literals
+     */
+    boolean mayMatch(Account account) {
+        return account.containsLower(literals);
+    }
+
+    /**
+     * Thrown by the walk on a construct it does not understand: the regex then has no literals.
+     */
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            // no stack trace: only caught in extract()
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Walks the regex, collecting the literals of the current sequence. An alternation drops the literals
+     * of its sequence; an unknown construct aborts the walk.
+     */
+    private static class LiteralExtractor {
+        private final String regex;
+        private int pos;
+
+        LiteralExtractor(String regex) {
+            this.regex = regex;
+        }
+
+        String[] extract() {
+            try {
+                Set<String> literals = new LinkedHashSet<>(sequence());
+                if (pos != regex.length()) return new String[0];
+                return literals.toArray(new String[0]);
+            } catch (Unsupported e) {
+                return new String[0];
+            }
+        }
+
+        /**
+         * Parse until the end of the regex or of the current group.
+         *
+         * @return the literals required by the sequence
+         */
+        private List<String> sequence() {
+            List<String> literals = new ArrayList<>();
+            StringBuilder run = new StringBuilder();
+            boolean alternation = false;
+
+            while (pos < regex.length() && regex.charAt(pos) != ')') {
+                char c = regex.charAt(pos++);
+                int literal = -1;
+                List<String> group = Collections.emptyList();
+                switch (c) {
+                    case '|':
+                        alternation = true;
+                        break;
+                    case '\\':
+                        literal = escape();
+                        break;
+                    case '[':
+                        characterClass();
+                        break;
+                    case '(':
+                        group = group();
+                        break;
+                    case '.':
+                    case '^':
+                    case '$':
+                        break;
+                    case '*':
+                    case '+':
+                    case '?':
+                    case '{':
+                        // a quantifier without atom: Pattern would have rejected it
+                        throw new Unsupported();
+                    default:
+                        literal = c;
+                }
+
+                boolean optional = false, repeated = false;
+                if (pos < regex.length()) {
+                    switch (regex.charAt(pos)) {
+                        case '?':
+                        case '*':
+                            optional = true;
+                            pos++;
+                            break;
+                        case '+':
+                            repeated = true;
+                            pos++;
+                            break;
+                        case '{':
+                            optional = minimum() == 0;
+                            repeated = true;
+                            break;
+                    }
+                    // lazy or possessive quantifier
+                    if ((optional || repeated) && pos < regex.length()
+                            && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) pos++;
+                }
+
+                if (literal >= 0 && foldable((char) literal) && !optional) {
+                    run.append(Character.toLowerCase((char) literal));
+                    if (repeated) flush(run, literals);
+                } else {
+                    flush(run, literals);
+                    if (!optional) literals.addAll(group);
+                }
+            }//end while
+
+            flush(run, literals);
+            return alternation ? Collections.emptyList() : literals;
+        }
+
+        /**
+         * Parse an escape, after the backslash.
+         *
+         * @return the escaped character, or -1 if it is not a literal
+         */
+        private int escape() {
+            if (pos == regex.length()) throw new Unsupported();
+            char c = regex.charAt(pos++);
+            if (!Character.isLetterOrDigit(c)) return c;
+            switch (c) {
+                case 'd':
+                case 'D':
+                case 's':
+                case 'S':
+                case 'w':
+                case 'W':
+                case 'b':
+                case 'B':
+                case 'A':
+                case 'z':
+                case 'Z':
+                case 'G':
+                case 'h':
+                case 'H':
+                case 'v':
+                case 'V':
+                case 'R':
+                case 'X':
+                case 't':
+                case 'n':
+                case 'r':
+                case 'f':
+                case 'a':
+                case 'e':
+                    return -1;
+                default:
+                    // quoting, properties, hexadecimal and unicode escapes, back references, ...
+                    throw new Unsupported();
+            }
+        }
+
+        /**
+         * Skip a character class, after the opening bracket.
+         */
+        private void characterClass() {
+            int depth = 1;
+            if (pos < regex.length() && regex.charAt(pos) == '^') pos++;
+            // a leading ] is a literal
+            if (pos < regex.length() && regex.charAt(pos) == ']') pos++;
+            while (pos < regex.length() && depth > 0) {
+                char c = regex.charAt(pos++);
+                if (c == '\\') {
+                    if (pos == regex.length()) throw new Unsupported();
+                    char escaped = regex.charAt(pos++);
+                    if ("QpPxuckN0".indexOf(escaped) >= 0) throw new Unsupported();
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+            }//end while
+            if (depth > 0) throw new Unsupported();
+        }
+
+        /**
+         * Parse a group, after the opening parenthesis.
+         *
+         * @return the literals required by the group
+         */
+        private List<String> group() {
+            boolean capturing = true;
+            if (regex.startsWith("?:", pos)) {
+                pos += 2;
+            } else if (regex.startsWith("?<", pos) && pos + 2 < regex.length()
+                    && Character.isLetter(regex.charAt(pos + 2))) {
+                // named group
+                int end = regex.indexOf('>', pos);
+                if (end < 0) throw new Unsupported();
+                pos = end + 1;
+            } else if (regex.startsWith("?=", pos) || regex.startsWith("?!", pos) || regex.startsWith("?>", pos)) {
+                pos += 2;
+                capturing = false;
+            } else if (regex.startsWith("?<=", pos) || regex.startsWith("?<!", pos)) {
+                pos += 3;
+                capturing = false;
+            } else if (regex.startsWith("?", pos)) {
+                // inline flags, which may change the case folding
+                throw new Unsupported();
+            }
+
+            List<String> literals = sequence();
+            if (pos == regex.length()) throw new Unsupported();
+            pos++; // )
+            // lookarounds do not consume, atomic groups are kept out for simplicity
+            return capturing ? literals : Collections.emptyList();
+        }
+
+        /**
+         * Parse a {n,m} quantifier.
+         *
+         * @return its minimum
+         */
+        private int minimum() {
+            int end = regex.indexOf('}', pos);
+            if (end < 0) throw new Unsupported();
+            String bounds = regex.substring(pos + 1, end);
+            pos = end + 1;
+            int comma = bounds.indexOf(',');
+            try {
+                return Integer.parseInt((comma < 0 ? bounds : bounds.substring(0, comma)).trim());
+            } catch (NumberFormatException e) {
+                throw new Unsupported();
+            }
+        }
+
+        /**
+         * @return true if both cases of the character have the same lowercase as in the account fields
+         * (see {@link Account#lowerFields()}), which depends on the default locale: not the I in turkish
+         */
+        private static boolean foldable(char c) {
+            if (c >= 0x80) return false;
+            String lower = String.valueOf(Character.toLowerCase(c)).toLowerCase();
+            return lower.length() == 1 && lower.charAt(0) == Character.toLowerCase(c)
+                    && String.valueOf(Character.toUpperCase(c)).toLowerCase().equals(lower);
+        }
+
+        private static void flush(StringBuilder run, List<String> literals) {
+            if (run.length() > 0) {
+                literals.add(run.toString());
+                run.setLength(0);
+            }
+        }
+    }
+}
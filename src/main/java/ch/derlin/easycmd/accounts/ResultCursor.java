@@ -0,0 +1,48 @@
+package ch.derlin.easycmd.accounts;
+
+import java.util.List;
+
+/**
+ * A read-only, random-access view over the keys of a search result.
+ * The keys are fixed when the result is made: the indexes printed to the user keep pointing to the same
+ * keys after the accounts change, although the keys may not exist anymore. Implementations share
+ * the keys instead of copying them (see {@link AccountsMap#all()}).
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public interface ResultCursor {
+
+    /**
+     * @return the number of results
+     */
+    int size();
+
+    /**
+     * @param index the index of the result, between 0 and {@link #size()} (excluded)
+     * @return the key of the account
+     */
+    String get(int index);
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return a cursor over an already materialized list of keys
+     */
+    static ResultCursor of(List<String> keys) {
+        return new ResultCursor() {
+            @Override
+            public int size() {
+                return keys.size();
+            }
+
+            @Override
+            public String get(int index) {
+                return keys.get(index);
+            }
+        };
+    }
+}
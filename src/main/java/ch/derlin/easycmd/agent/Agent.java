@@ -0,0 +1,387 @@
+package ch.derlin.easycmd.agent;
+
+import ch.derlin.easycmd.SerialisationManager;
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsJournal;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.accounts.CompactAccountsMap;
+import ch.derlin.easycmd.crypto.SessionKey;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resident process keeping a vault decrypted in memory and answering queries over a loopback socket,
+ * so that scripts neither pay for the JVM startup nor for the decryption on every lookup.
+ * <p>
+ * The agent listens on an ephemeral port of the loopback interface. The port and a random token are
+ * written to &lt;vault&gt;.agent, readable by the owner only: every request must carry the token.
+ * The protocol is one json object per line, in both directions (see {@link Request} and {@link AgentClient}):
+ * <pre>
+ * &gt; {"token": "...", "command": "find", "args": ["bank"]}
+ * &lt; {"status":"ok","results":["my bank"],"total":1}
+ * </pre>
+ * Commands: ping, find &lt;terms&gt;, show &lt;name | terms&gt;, get &lt;field&gt; &lt;name | terms&gt;, unlock
+ * (with a password), lock and stop. The status of a response is "ok", "error" or "locked".
+ * <p>
+ * The agent is read-only: it keeps the accounts in a {@link CompactAccountsMap}, a fraction of the heap
+ * of an {@link AccountsMap}. It reloads the vault when the vault or its journal change on disk, and
+ * locks itself (drops the accounts and the key) after {@link #getIdleTimeout()} ms without requests;
+ * an unlock request with the password is then required.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class Agent implements Closeable {
+
+    public static final String EXTENSION = ".agent";
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(15);
+
+    // a silent client does not hold a thread forever
+    private static final int READ_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(1);
+    private static final int TOKEN_LENGTH = 32;
+
+    public static final String OK = "ok", ERROR = "error", LOCKED = "locked";
+
+    private final String filepath;
+    private final Path tokenFile;
+    private final long idleTimeout;
+    private final String token;
+    private final ServerSocket server;
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "agent-client");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService locker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "agent-locker");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Vault vault;
+    private volatile long lastUse = System.currentTimeMillis();
+    private volatile boolean closed;
+
+    /**
+     * The decrypted vault. Never modified once loaded: it can be read by all the client threads.
+     */
+    private static class Vault {
+        SessionKey key;
+        CompactAccountsMap accounts;
+        String stamp;
+    }
+
+    /**
+     * A request, as sent by the clients.
+     */
+    public static class Request {
+        public String token, command, password;
+        public String[] args = new String[0];
+    }
+
+    // ------------------------------------- lifecycle
+
+    /**
+     * Decrypt the vault and start listening. Call {@link #serve()} to answer the requests.
+     *
+     * @param filepath    the vault filepath
+     * @param password    the vault password
+     * @param idleTimeout the number of ms without requests after which the agent locks itself
+     */
+    public Agent(String filepath, String password, long idleTimeout) throws IOException, SerialisationManager.WrongCredentialsException {
+        this.filepath = filepath;
+        this.tokenFile = Paths.get(filepath + EXTENSION);
+        this.idleTimeout = idleTimeout;
+
+        unlock(password);
+
+        byte[] random = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(random);
+        this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        writeTokenFile();
+
+        long period = Math.max(1000, idleTimeout / 4);
+        locker.scheduleWithFixedDelay(this::lockIfIdle, period, period, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::deleteTokenFile));
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Accept and answer the clients (each one on its own thread) until the agent is closed.
+     */
+    public void serve() throws IOException {
+        try {
+            while (!closed) {
+                Socket socket = server.accept();
+                workers.execute(() -> handle(socket));
+            }//end while
+        } catch (SocketException e) {
+            // closed
+            if (!closed) throw e;
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        vault = null;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        locker.shutdownNow();
+        workers.shutdownNow();
+        deleteTokenFile();
+    }
+
+    // ------------------------------------- requests
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            s.setSoTimeout(READ_TIMEOUT);
+            String line;
+            while ((line = in.readLine()) != null) {
+                Map<String, Object> response;
+                try {
+                    response = answer(gson.fromJson(line, Request.class));
+                } catch (JsonParseException e) {
+                    response = response(ERROR, "invalid request");
+                }
+                out.write(gson.toJson(response));
+                out.write('\n');
+                out.flush();
+                if (closed) {
+                    close();
+                    break;
+                }
+            }//end while
+        } catch (IOException e) {
+            // client gone or silent for too long
+        }
+    }
+
+    /**
+     * Answer a request.
+     *
+     * @param request the request
+     * @return the response
+     */
+    Map<String, Object> answer(Request request) {
+        if (request == null || request.token == null || !MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8), request.token.getBytes(StandardCharsets.UTF_8))) {
+            return response(ERROR, "invalid token");
+        }
+        if (request.command == null) return response(ERROR, "missing command");
+        String[] args = request.args == null ? new String[0] : request.args;
+        lastUse = System.currentTimeMillis();
+
+        switch (request.command.toLowerCase()) {
+            case "ping":
+                Map<String, Object> pong = response(OK, null);
+                pong.put("locked", vault == null);
+                return pong;
+
+            case "unlock":
+                if (request.password == null) return response(ERROR, "missing password");
+                try {
+                    unlock(request.password);
+                    return response(OK, null);
+                } catch (SerialisationManager.WrongCredentialsException e) {
+                    return response(ERROR, "wrong credentials");
+                } catch (IOException e) {
+                    return response(ERROR, e.getMessage());
+                }
+
+            case "lock":
+                vault = null;
+                return response(OK, null);
+
+            case "stop":
+                // the connection closes the agent once the response is sent
+                closed = true;
+                return response(OK, null);
+        }
+
+        CompactAccountsMap accounts;
+        try {
+            accounts = accounts();
+        } catch (IOException | SerialisationManager.WrongCredentialsException e) {
+            return response(ERROR, "error reloading the vault: " + e.getMessage());
+        }
+        if (accounts == null) return response(LOCKED, "the agent is locked");
+
+        switch (request.command.toLowerCase()) {
+            case "find":
+                List<String> results = args.length == 0 ? accounts.keys() : accounts.find(args);
+                Map<String, Object> found = response(OK, null);
+                found.put("results", results);
+                found.put("total", results.size());
+                return found;
+
+            case "show": {
+                Map<String, Object> shown = response(OK, null);
+                Account a = findOne(accounts, args, shown);
+                if (a == null) return shown;
+                Map<String, String> fields = new LinkedHashMap<>();
+                fields.put("name", a.name);
+                fields.put("pseudo", a.pseudo);
+                fields.put("email", a.email);
+                fields.put("notes", a.notes);
+                fields.put("creation date", a.creationDate);
+                fields.put("modification date", a.modificationDate);
+                shown.put("account", fields);
+                return shown;
+            }
+
+            case "get": {
+                if (args.length < 1) return response(ERROR, "missing field. Usage: get <field> <name | terms>");
+                Map<String, Object> got = response(OK, null);
+                Account a = findOne(accounts, Arrays.copyOfRange(args, 1, args.length), got);
+                if (a == null) return got;
+                String value = a.get(args[0]);
+                if (value == null) return response(ERROR, "invalid field " + args[0]);
+                got.put("value", value);
+                return got;
+            }
+
+            default:
+                return response(ERROR, "unknown command " + request.command);
+        }
+    }
+
+    /**
+     * Get the account designated by the arguments: the account with this exact name
+     * (ignoring case), else the only account matching all the terms.
+     *
+     * @param response the response, turned into an error if there is no such account
+     * @return the account, or null
+     */
+    private Account findOne(CompactAccountsMap accounts, String[] args, Map<String, Object> response) {
+        if (args.length == 0) {
+            response.put("status", ERROR);
+            response.put("message", "missing account");
+            return null;
+        }
+        String key = accounts.getKeyLower(String.join(" ", args));
+        if (key != null) return accounts.get(key);
+
+        List<String> matches = accounts.find(args);
+        if (matches.size() == 1) return accounts.get(matches.get(0));
+
+        response.put("status", ERROR);
+        response.put("message", matches.isEmpty() ? "not match." : "ambiguous account.");
+        if (!matches.isEmpty()) response.put("results", matches);
+        List<String> closest = accounts.closestNames(String.join(" ", args),
+                AccountsMap.SUGGESTION_DISTANCE, AccountsMap.SUGGESTION_LIMIT);
+        if (!closest.isEmpty()) response.put("suggestions", closest);
+        return null;
+    }
+
+    private static Map<String, Object> response(String status, String message) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("status", status);
+        if (message != null) response.put("message", message);
+        return response;
+    }
+
+    // ------------------------------------- vault
+
+    /**
+     * @return the accounts, reloaded if the vault changed on disk, or null if the agent is locked
+     */
+    private synchronized CompactAccountsMap accounts() throws IOException, SerialisationManager.WrongCredentialsException {
+        Vault v = vault;
+        if (v == null) return null;
+        if (!v.stamp.equals(stamp())) vault = v = load(v.key);
+        return v.accounts;
+    }
+
+    private synchronized void unlock(String password) throws IOException, SerialisationManager.WrongCredentialsException {
+        vault = load(new SessionKey(password));
+    }
+
+    private Vault load(SessionKey key) throws IOException, SerialisationManager.WrongCredentialsException {
+        Vault v = new Vault();
+        // read the stamp first: a change during the load triggers another one
+        v.stamp = stamp();
+        v.key = key;
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        AccountsJournal.open(filepath, key, accounts, null).close();
+        v.accounts = CompactAccountsMap.of(accounts);
+        return v;
+    }
+
+    /**
+     * @return a string which changes whenever the vault or its journal change on disk
+     */
+    private String stamp() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (String extension : new String[]{"", AccountsJournal.EXTENSION, AccountsJournal.PENDING_EXTENSION}) {
+            File f = new File(filepath + extension);
+            builder.append(f.lastModified()).append(':').append(f.length()).append(';');
+        }//end for
+        return builder.toString();
+    }
+
+    private void lockIfIdle() {
+        if (vault != null && System.currentTimeMillis() - lastUse > idleTimeout) {
+            vault = null;
+        }
+    }
+
+    // ------------------------------------- token file
+
+    private void writeTokenFile() throws IOException {
+        Path dir = tokenFile.toAbsolutePath().getParent();
+        // temp files are created readable by the owner only
+        Path tmp = Files.createTempFile(dir, tokenFile.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, String.format("%d%n%s%n", getPort(), token).getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void deleteTokenFile() {
+        try {
+            // do not remove the file of another agent started since
+            List<String> lines = Files.readAllLines(tokenFile, StandardCharsets.US_ASCII);
+            if (lines.size() > 1 && lines.get(1).equals(token)) Files.delete(tokenFile);
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
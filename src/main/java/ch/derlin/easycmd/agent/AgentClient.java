@@ -0,0 +1,106 @@
+package ch.derlin.easycmd.agent;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Client of an {@link Agent}: finds the agent of a vault through its &lt;vault&gt;.agent file and sends
+ * it requests over a single connection.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AgentClient implements Closeable {
+
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private final String token;
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+
+    /**
+     * Connect to the agent of the given vault.
+     *
+     * @param filepath the vault filepath
+     * @throws IOException if no agent is running for this vault
+     */
+    public AgentClient(String filepath) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(filepath + Agent.EXTENSION), StandardCharsets.US_ASCII);
+        } catch (NoSuchFileException e) {
+            throw new IOException("no agent running for " + filepath);
+        }
+        if (lines.size() < 2) throw new IOException("invalid agent file " + filepath + Agent.EXTENSION);
+        token = lines.get(1);
+        socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(lines.get(0).trim()));
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send a command.
+     *
+     * @param command the command (find, show, get, ...)
+     * @param args    its arguments
+     * @return the response
+     */
+    public JsonObject send(String command, String... args) throws IOException {
+        Agent.Request request = new Agent.Request();
+        request.command = command;
+        request.args = args;
+        return send(request);
+    }
+
+    /**
+     * Unlock the agent.
+     *
+     * @return the response
+     */
+    public JsonObject unlock(String password) throws IOException {
+        Agent.Request request = new Agent.Request();
+        request.command = "unlock";
+        request.password = password;
+        return send(request);
+    }
+
+    /**
+     * @return true if the response has the given status
+     */
+    public static boolean is(JsonObject response, String status) {
+        return response.has("status") && response.get("status").getAsString().equals(status);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // ------------------------------------- private utils
+
+    private JsonObject send(Agent.Request request) throws IOException {
+        request.token = token;
+        out.write(gson.toJson(request));
+        out.write('\n');
+        out.flush();
+        String line = in.readLine();
+        if (line == null) throw new EOFException("the agent closed the connection");
+        try {
+            return gson.fromJson(line, JsonObject.class);
+        } catch (JsonParseException e) {
+            throw new IOException("invalid response from the agent", e);
+        }
+    }
+}
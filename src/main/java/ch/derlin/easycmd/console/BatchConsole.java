@@ -0,0 +1,300 @@
+package ch.derlin.easycmd.console;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.ResultCursor;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Console running a script of commands instead of an interactive session.
+ * <p>
+ * The commands are read one per line (blank lines and lines starting with # are skipped).
+ * Everything a command prints is collected and written as one json object per command
+ * (newline-delimited json), for example:
+ * <pre>
+ * {"line":1,"command":"find bank","status":"ok","results":[{"index":0,"name":"my bank"}],"total":1}
+ * </pre>
+ * The status is "ok", "warn" or "error"; the messages of the command, if any, are listed under
+ * "messages". Depending on the command, the record also holds the "results", an "account"
+ * (without the password) or a "value" (showpass, copy: there is no clipboard in batch mode).
+ * <p>
+ * Nobody is there to answer: confirmations are always accepted. The fields of a new or edited
+ * account are read from the line following the command, as a json object
+ * (e.g. <code>{"name": "x", "password": "y"}</code>); missing fields keep their current value.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class BatchConsole extends Console {
+
+    private static final String OK = "ok", WARN = "warn", ERROR = "error";
+
+    private final BufferedReader script;
+    private final PrintStream out;
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    private Map<String, Object> record;
+    private int lineNumber, errors;
+
+    /**
+     * @param script the commands
+     * @param out    where to write the json records
+     */
+    public BatchConsole(Reader script, OutputStream out) throws IOException {
+        super(new ByteArrayInputStream(new byte[0]), out);
+        this.script = new BufferedReader(script);
+        this.out = new PrintStream(new BufferedOutputStream(out, 64 * 1024), false, "UTF-8");
+    }
+
+    // ------------------------------------- records
+
+    /**
+     * Read the next command of the script and start its record.
+     *
+     * @return the command line, null at the end of the script
+     */
+    public synchronized String readCommand() throws IOException {
+        String line;
+        while ((line = nextLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                begin(line);
+                return line;
+            }
+        }//end while
+        return null;
+    }
+
+    /**
+     * Start the record of a command which is not part of the script.
+     */
+    public synchronized void begin(String command) {
+        end();
+        record = new LinkedHashMap<>();
+        record.put("line", lineNumber);
+        record.put("command", command);
+        record.put("status", OK);
+    }
+
+    /**
+     * Write the record of the current command, if any.
+     */
+    public synchronized void end() {
+        if (record == null) return;
+        out.println(gson.toJson(record));
+        record = null;
+    }
+
+    /**
+     * @return the number of commands which ended with an error
+     */
+    public synchronized int errors() {
+        return errors;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        // also called by the ConsoleReader constructor
+        if (out == null) return;
+        end();
+        out.flush();
+        super.flush();
+    }
+
+    // ------------------------------------- output
+
+    // what the commands print through the ConsoleReader goes to the records as well:
+    // nothing but json reaches the output
+
+    @Override
+    public void print(CharSequence s) {
+        if (out != null && s.toString().trim().length() > 0) message(OK, s.toString());
+    }
+
+    @Override
+    public void println(CharSequence s) {
+        print(s);
+    }
+
+    @Override
+    public void println() {
+    }
+
+    @Override
+    public void warn(String warn, Object... args) {
+        message(WARN, String.format(warn, args));
+    }
+
+    @Override
+    public void error(String error, Object... args) {
+        message(ERROR, String.format(error, args));
+    }
+
+    @Override
+    public void info(String info, Object... args) {
+        message(OK, String.format(info, args));
+    }
+
+    @Override
+    public void printWithPrompt(String prompt, String text) {
+        message(OK, prompt.trim() + " " + text);
+    }
+
+    @Override
+    public synchronized void show(Account account) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("name", account.name);
+        fields.put("pseudo", account.pseudo);
+        fields.put("email", account.email);
+        fields.put("notes", account.notes);
+        fields.put("creation date", account.creationDate);
+        fields.put("modification date", account.modificationDate);
+        current().put("account", fields);
+    }
+
+    @Override
+    public synchronized void printResults(ResultCursor results, int page, int pageSize) {
+        int size = results.size(), pages = (size + pageSize - 1) / pageSize;
+        List<Map<String, Object>> list = new ArrayList<>();
+        for (int i = page * pageSize; i < Math.min(size, (page + 1) * pageSize); i++) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("index", i);
+            result.put("name", results.get(i));
+            list.add(result);
+        }//end for
+        Map<String, Object> record = current();
+        record.put("results", list);
+        record.put("total", size);
+        if (pages > 1) {
+            record.put("page", page + 1);
+            record.put("pages", pages);
+        }
+    }
+
+    @Override
+    public synchronized void copyToClipboard(String s) {
+        current().put("value", s);
+    }
+
+    @Override
+    public synchronized boolean showPassword(String pass) {
+        current().put("value", pass);
+        return false;
+    }
+
+    // ------------------------------------- input
+
+    @Override
+    public String readLine() throws IOException {
+        return nextLine();
+    }
+
+    @Override
+    public boolean confirm(String text) {
+        return true;
+    }
+
+    @Override
+    public String readWithDefault(String prompt, String preload) {
+        return preload;
+    }
+
+    @Override
+    public String readPassword(String prompt, String preload) throws IOException {
+        // the script is not the place for the vault password: ask the terminal, if any
+        java.io.Console terminal = System.console();
+        if (terminal == null) throw new IOException("no terminal to read the password from, use -p <pass>");
+        char[] pass = terminal.readPassword("%s", prompt);
+        return pass == null || pass.length == 0 ? preload : new String(pass);
+    }
+
+    @Override
+    public Account readAccount(Account oldAccount) throws IOException {
+        if (oldAccount == null) oldAccount = new Account();
+        Account newAccount = new Account();
+        newAccount.name = oldAccount.name;
+        newAccount.pseudo = oldAccount.pseudo;
+        newAccount.email = oldAccount.email;
+        newAccount.setPassword(oldAccount.getPassword());
+        newAccount.notes = oldAccount.notes;
+
+        String line = nextLine();
+        JsonObject fields;
+        try {
+            fields = line == null ? null : gson.fromJson(line, JsonObject.class);
+        } catch (JsonParseException e) {
+            fields = null;
+        }
+        if (fields == null) {
+            error("line %d: expected the account fields as a json object", lineNumber);
+            throw new IOException("missing account fields");
+        }
+
+        for (Map.Entry<String, JsonElement> field : fields.entrySet()) {
+            String value = field.getValue().isJsonNull() ? "" : field.getValue().getAsString().trim();
+            switch (field.getKey()) {
+                case "name":
+                    newAccount.name = value;
+                    break;
+                case "pseudo":
+                    newAccount.pseudo = value;
+                    break;
+                case "email":
+                    newAccount.email = value;
+                    break;
+                case "password":
+                    newAccount.setPassword(value);
+                    break;
+                case "notes":
+                    newAccount.notes = value;
+                    break;
+                default:
+                    warn("line %d: unknown field '%s' ignored", lineNumber, field.getKey());
+            }
+        }//end for
+        return newAccount;
+    }
+
+    // ------------------------------------- private utils
+
+    private String nextLine() throws IOException {
+        String line = script.readLine();
+        if (line != null) lineNumber++;
+        return line;
+    }
+
+    private synchronized void message(String status, String text) {
+        boolean standalone = record == null;
+        Map<String, Object> record = current();
+
+        @SuppressWarnings("unchecked")
+        List<String> messages = (List<String>) record.computeIfAbsent("messages", k -> new ArrayList<String>());
+        messages.add(text.trim());
+
+        Object current = record.get("status");
+        if (status.equals(ERROR) && !current.equals(ERROR)) {
+            record.put("status", ERROR);
+            errors++;
+        } else if (status.equals(WARN) && current.equals(OK)) {
+            record.put("status", WARN);
+        }
+
+        // messages outside of a command (e.g. from the background saves) are written right away
+        if (standalone) end();
+    }
+
+    private Map<String, Object> current() {
+        if (record == null) {
+            record = new LinkedHashMap<>();
+            record.put("status", OK);
+        }
+        return record;
+    }
+}
@@ -1,9 +1,16 @@
 package ch.derlin.easycmd.console;
 
 import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.ResultCursor;
+import jline.UnsupportedTerminal;
 import jline.console.ConsoleReader;
 
+import java.awt.*;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.StringSelection;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import static ch.derlin.easycmd.console.Console.ANSIColors.*;
 
@@ -38,6 +45,16 @@ public class Console extends ConsoleReader {
         super.setPrompt(wrap(prompt, promptColor));
     }
 
+    /**
+     * Console not attached to a terminal.
+     */
+    protected Console(InputStream in, OutputStream out) throws IOException {
+        super(in, out, new UnsupportedTerminal());
+        this.prompt = "";
+        this.promptColor = "";
+        this.disableColor = true;
+    }
+
     @Override
     public String readLine() throws IOException {
         return super.readLine(wrap(prompt, promptColor));
@@ -68,6 +85,28 @@ public class Console extends ConsoleReader {
         System.out.printf("%s%s%n", wrap(prompt, promptColor), text);
     }
 
+    public void show(Account account) {
+        account.show(this);
+    }
+
+    public void printResults(ResultCursor results, int page, int pageSize) {
+        // print only the current page, in one go
+        int size = results.size(), pages = (size + pageSize - 1) / pageSize;
+        StringBuilder builder = new StringBuilder();
+        for (int i = page * pageSize; i < Math.min(size, (page + 1) * pageSize); i++) {
+            builder.append(String.format("  [%d] %s%n", i, results.get(i)));
+        }//end for
+        builder.append(String.format(" %d results.", size));
+        if (pages > 1) builder.append(String.format(" page %d/%d (next, prev).", page + 1, pages));
+        System.out.println(builder);
+    }
+
+    public void copyToClipboard(String s) {
+        StringSelection selection = new StringSelection(s);
+        Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+        clipboard.setContents(selection, selection);
+    }
+
     public void warn(String warn, Object... args) {
         String text = String.format(warn, args);
         System.out.println(wrap(" warn: ", PURPLE) + text);
@@ -97,7 +136,7 @@ public class Console extends ConsoleReader {
         newAccount.name = readWithDefault("   name> ", oldAccount.name).trim();
         newAccount.pseudo = readWithDefault("   pseudo> ", oldAccount.pseudo).trim();
         if (!oldAccount.email.isEmpty()) newAccount.email = readWithDefault("   email> ", oldAccount.email).trim();
-        newAccount.password = readPassword("   password> ", oldAccount.password).trim();
+        newAccount.setPassword(readPassword("   password> ", oldAccount.getPassword()).trim());
         newAccount.notes = readWithDefault("   note> ", oldAccount.notes).trim();
 
         return newAccount;
@@ -0,0 +1,151 @@
+package ch.derlin.easycmd.crypto;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A password-based key derivation function. Each function has a unique id, stored in the
+ * {@link VaultHeader} with its parameters, so that new functions can be plugged in with
+ * {@link #register(Kdf)} without breaking the existing files.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public interface Kdf {
+
+    /**
+     * @return the id of the function, stored in the file headers
+     */
+    int id();
+
+    /**
+     * @return a human readable name
+     */
+    String name();
+
+    /**
+     * @return the work factor to use for new keys (e.g. the number of iterations)
+     */
+    int defaultWorkFactor();
+
+    /**
+     * @return the smallest work factor accepted, in the headers and for new keys
+     */
+    int minWorkFactor();
+
+    /**
+     * @return the largest work factor accepted: the headers are not authenticated, a huge value
+     * would hang the unlock
+     */
+    int maxWorkFactor();
+
+    /**
+     * @throws IllegalArgumentException if the work factor is not accepted by the function
+     */
+    default void checkWorkFactor(int workFactor) {
+        if (workFactor < minWorkFactor() || workFactor > maxWorkFactor()) {
+            throw new IllegalArgumentException(String.format("invalid work factor %d for %s (%d to %d)",
+                    workFactor, name(), minWorkFactor(), maxWorkFactor()));
+        }
+    }
+
+    /**
+     * Derive a key from the password.
+     *
+     * @param password   the password
+     * @param salt       the salt
+     * @param workFactor the work factor (meaning depends on the function)
+     * @param keyLength  the length of the key, in bytes
+     * @return the key
+     */
+    byte[] derive(char[] password, byte[] salt, int workFactor, int keyLength) throws GeneralSecurityException;
+
+    // ----------------------------------------------------
+
+    Kdf PBKDF2_SHA256 = new Pbkdf2(1, "pbkdf2-sha256", "PBKDF2WithHmacSHA256", 600_000);
+
+    static void register(Kdf kdf) {
+        Registry.KDFS.put(kdf.id(), kdf);
+    }
+
+    /**
+     * @param id the id of the function
+     * @return the function
+     * @throws GeneralSecurityException if the function is unknown
+     */
+    static Kdf get(int id) throws GeneralSecurityException {
+        Kdf kdf = Registry.KDFS.get(id);
+        if (kdf == null) throw new GeneralSecurityException("unknown key derivation function " + id);
+        return kdf;
+    }
+
+    // ----------------------------------------------------
+
+    /**
+     * PBKDF2, as provided by the JCE.
+     */
+    class Pbkdf2 implements Kdf {
+        // the minimum of NIST SP 800-132, and about ten seconds of derivation
+        public static final int MIN_ITERATIONS = 1_000, MAX_ITERATIONS = 10_000_000;
+
+        private final int id, defaultIterations;
+        private final String name, algorithm;
+
+        public Pbkdf2(int id, String name, String algorithm, int defaultIterations) {
+            this.id = id;
+            this.name = name;
+            this.algorithm = algorithm;
+            this.defaultIterations = defaultIterations;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public int defaultWorkFactor() {
+            return defaultIterations;
+        }
+
+        @Override
+        public int minWorkFactor() {
+            return MIN_ITERATIONS;
+        }
+
+        @Override
+        public int maxWorkFactor() {
+            return MAX_ITERATIONS;
+        }
+
+        @Override
+        public byte[] derive(char[] password, byte[] salt, int iterations, int keyLength) throws GeneralSecurityException {
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyLength * 8);
+            try {
+                return SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+
+    final class Registry {
+        private static final Map<Integer, Kdf> KDFS = new HashMap<>();
+
+        static {
+            KDFS.put(PBKDF2_SHA256.id(), PBKDF2_SHA256);
+        }
+
+        private Registry() {
+        }
+    }
+}
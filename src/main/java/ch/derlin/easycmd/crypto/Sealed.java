@@ -0,0 +1,118 @@
+package ch.derlin.easycmd.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Secrets kept encrypted in memory, and decrypted only when read.
+ * <p>
+ * The values are encrypted with AES/CTR and a random key of the process, which never leaves the memory:
+ * it does not protect against an attacker reading the memory of the process, but the plaintext of a
+ * secret only lives for as long as it is used, instead of the whole session (heap dumps, swap, strings
+ * lingering until the next garbage collection). A sealed value is an array:
+ * <pre>
+ * nonce (8 bytes) | UTF-8 bytes, encrypted
+ * </pre>
+ * The empty string is sealed to an empty array, null to null.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public final class Sealed {
+
+    public static final byte[] EMPTY = new byte[0];
+
+    private static final String CIPHER = "AES/CTR/NoPadding";
+    private static final int NONCE_LENGTH = Long.BYTES;
+
+    private static final SecretKeySpec KEY;
+    // unique per sealed value: the counter part of the iv is never reused with the key
+    private static final AtomicLong NONCE = new AtomicLong();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(CIPHER);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    static {
+        byte[] key = new byte[16];
+        new SecureRandom().nextBytes(key);
+        KEY = new SecretKeySpec(key, "AES");
+    }
+
+    private Sealed() {
+    }
+
+    /**
+     * Seal a string.
+     *
+     * @return the sealed value
+     */
+    public static byte[] seal(String value) {
+        if (value == null) return null;
+        if (value.isEmpty()) return EMPTY;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] sealed = seal(bytes, 0, bytes.length);
+        Arrays.fill(bytes, (byte) 0);
+        return sealed;
+    }
+
+    /**
+     * Seal the UTF-8 bytes of a string, without creating the string.
+     *
+     * @return the sealed value
+     */
+    public static byte[] seal(byte[] utf8, int offset, int length) {
+        if (length == 0) return EMPTY;
+        byte[] sealed = new byte[NONCE_LENGTH + length];
+        long nonce = NONCE.incrementAndGet();
+        for (int i = 0; i < NONCE_LENGTH; i++) sealed[i] = (byte) (nonce >>> (8 * i));
+        crypt(Cipher.ENCRYPT_MODE, sealed, utf8, offset, length, sealed, NONCE_LENGTH);
+        return sealed;
+    }
+
+    /**
+     * @return the string, or null if the sealed value is null
+     */
+    public static String open(byte[] sealed) {
+        if (sealed == null) return null;
+        byte[] bytes = openBytes(sealed);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        Arrays.fill(bytes, (byte) 0);
+        return value;
+    }
+
+    /**
+     * @return the UTF-8 bytes of the string, to clear after use
+     */
+    public static byte[] openBytes(byte[] sealed) {
+        if (sealed.length == 0) return EMPTY;
+        byte[] bytes = new byte[sealed.length - NONCE_LENGTH];
+        crypt(Cipher.DECRYPT_MODE, sealed, sealed, NONCE_LENGTH, bytes.length, bytes, 0);
+        return bytes;
+    }
+
+    // ------------------------------------- private utils
+
+    private static void crypt(int mode, byte[] nonce, byte[] in, int offset, int length, byte[] out, int outOffset) {
+        byte[] iv = new byte[16];
+        System.arraycopy(nonce, 0, iv, 0, NONCE_LENGTH);
+        Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(mode, KEY, new IvParameterSpec(iv));
+            cipher.doFinal(in, offset, length, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            // AES/CTR is always available and never fails on a valid key and iv
+            throw new IllegalStateException(e);
+        }
+    }
+}
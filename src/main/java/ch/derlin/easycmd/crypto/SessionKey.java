@@ -0,0 +1,142 @@
+package ch.derlin.easycmd.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * The key of a session, derived once from the password when the vault is unlocked and reused for
+ * every subsequent save and reload, so that the (deliberately slow) key derivation is paid only once.
+ * <p>
+ * New files are always written with the configured function and work factor. The salt is adopted
+ * from the first header unlocked with {@link #unlock(VaultHeader)} if it has these parameters, so that
+ * reopening a vault does not derive the key twice; otherwise it is chosen on the first
+ * {@link #newHeader(int)}, and a vault written with other parameters (or a tampered header) is
+ * rewritten with the configured ones on its next save. Every encryption uses a fresh random iv.
+ * The password is kept to open files written with other parameters (and legacy files); the key
+ * of the last of them is cached.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class SessionKey {
+
+    public static final String CIPHER = "AES/CBC/PKCS5Padding";
+    public static final int KEY_LENGTH = 32, SALT_LENGTH = 16, IV_LENGTH = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final char[] password;
+    private final Kdf kdf;
+    private final int workFactor;
+
+    // derivation parameters and key of the session, used for new files, set on first use
+    private VaultHeader params;
+    private SecretKeySpec key;
+    // the last header unlocked with other parameters, and its key
+    private VaultHeader otherParams;
+    private SecretKeySpec otherKey;
+
+    /**
+     * Create a session key, using the default kdf and work factor for new files.
+     */
+    public SessionKey(String password) {
+        this(password, Kdf.PBKDF2_SHA256, Kdf.PBKDF2_SHA256.defaultWorkFactor());
+    }
+
+    /**
+     * Create a session key.
+     *
+     * @param password   the password
+     * @param kdf        the key derivation function to use for new files
+     * @param workFactor the work factor to use for new files
+     * @throws IllegalArgumentException if the work factor is out of the bounds of the function
+     */
+    public SessionKey(String password, Kdf kdf, int workFactor) {
+        kdf.checkWorkFactor(workFactor);
+        this.password = password.toCharArray();
+        this.kdf = kdf;
+        this.workFactor = workFactor;
+    }
+
+    public String getPassword() {
+        return new String(password);
+    }
+
+    /**
+     * Derive the key now with the parameters for new files, unless it is already known.
+     * Call it at unlock, so that the first save does not pay for it.
+     */
+    public synchronized void derive() throws GeneralSecurityException {
+        if (key != null) return;
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        params = new VaultHeader(0, kdf.id(), workFactor, salt, new byte[0]);
+        key = derive(params);
+    }
+
+    /**
+     * Create the header of a new file, with the session parameters and a fresh iv.
+     *
+     * @param flags the header flags
+     * @return the header
+     */
+    public synchronized VaultHeader newHeader(int flags) throws GeneralSecurityException {
+        derive();
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        return new VaultHeader(flags, params.getKdfId(), params.getWorkFactor(), params.getSalt(), iv);
+    }
+
+    /**
+     * Get a cipher to decrypt the payload following the given header. If the session key is not
+     * known yet and the header has the configured function and work factor, its parameters become
+     * the parameters of the session.
+     *
+     * @param header the header
+     * @return the cipher, ready to decrypt
+     */
+    public Cipher unlock(VaultHeader header) throws GeneralSecurityException {
+        return cipher(Cipher.DECRYPT_MODE, header);
+    }
+
+    /**
+     * Get a cipher to encrypt the payload following the given header (see {@link #newHeader(int)}).
+     *
+     * @param header the header
+     * @return the cipher, ready to encrypt
+     */
+    public Cipher encrypt(VaultHeader header) throws GeneralSecurityException {
+        return cipher(Cipher.ENCRYPT_MODE, header);
+    }
+
+    // ------------------------------------- private utils
+
+    private Cipher cipher(int mode, VaultHeader header) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(mode, keyFor(header), new IvParameterSpec(header.getIv()));
+        return cipher;
+    }
+
+    private synchronized SecretKeySpec keyFor(VaultHeader header) throws GeneralSecurityException {
+        if (key != null && params.sameKeyAs(header)) return key;
+        if (otherKey != null && otherParams.sameKeyAs(header)) return otherKey;
+        SecretKeySpec derived = derive(header);
+        if (key == null && header.getKdfId() == kdf.id() && header.getWorkFactor() == workFactor) {
+            params = header;
+            key = derived;
+        } else {
+            otherParams = header;
+            otherKey = derived;
+        }
+        return derived;
+    }
+
+    private SecretKeySpec derive(VaultHeader header) throws GeneralSecurityException {
+        byte[] bytes = Kdf.get(header.getKdfId()).derive(password, header.getSalt(), header.getWorkFactor(), KEY_LENGTH);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
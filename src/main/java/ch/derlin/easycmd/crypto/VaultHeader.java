@@ -0,0 +1,177 @@
+package ch.derlin.easycmd.crypto;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * The cleartext header of the encrypted files, describing how to derive the key and decrypt
+ * the payload:
+ * <pre>
+ * magic "EZCMD" | version (1 byte) | flags (1 byte) | kdf id (1 byte) | work factor (int)
+ *   | salt length (1 byte) | salt | iv length (1 byte) | iv
+ * </pre>
+ * The payload following the header is encrypted with AES/CBC/PKCS5Padding. Its format is given by
+ * the flags: json by default, binary with {@link #FLAG_BINARY}, deflated before the encryption with
+ * {@link #FLAG_DEFLATE}. With {@link #FLAG_BLOCKS}, the payload is not a single stream but independently
+ * encrypted blocks followed by an index (see ch.derlin.easycmd.accounts.BlockVault); the iv of the
+ * header is then the one of the index.
+ * Files without this header are legacy openssl-style files (see {@link #isPresent(InputStream)}).
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class VaultHeader {
+
+    public static final byte[] MAGIC = "EZCMD".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+
+    // the payload is in a binary format (see SerialisationManager.BinaryCodec) instead of json
+    public static final int FLAG_BINARY = 0x01;
+    // the payload is compressed (java.util.zip deflate) before the encryption
+    public static final int FLAG_DEFLATE = 0x02;
+    // the payload is made of independently encrypted blocks of binary records, followed by an index
+    public static final int FLAG_BLOCKS = 0x04;
+    // the flags describing the payload format
+    public static final int PAYLOAD_FLAGS = FLAG_BINARY | FLAG_DEFLATE | FLAG_BLOCKS;
+
+    private final int version;
+    private final int flags;
+    private final int kdfId;
+    private final int workFactor;
+    private final byte[] salt;
+    private final byte[] iv;
+
+    public VaultHeader(int flags, int kdfId, int workFactor, byte[] salt, byte[] iv) {
+        this(VERSION, flags, kdfId, workFactor, salt, iv);
+    }
+
+    private VaultHeader(int version, int flags, int kdfId, int workFactor, byte[] salt, byte[] iv) {
+        this.version = version;
+        this.flags = flags;
+        this.kdfId = kdfId;
+        this.workFactor = workFactor;
+        this.salt = salt;
+        this.iv = iv;
+    }
+
+    // ------------------------------------- getters
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int getKdfId() {
+        return kdfId;
+    }
+
+    public int getWorkFactor() {
+        return workFactor;
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public byte[] getIv() {
+        return iv;
+    }
+
+    /**
+     * @return true if the key derivation parameters are the same, i.e. the same password gives the same key
+     */
+    public boolean sameKeyAs(VaultHeader other) {
+        return kdfId == other.kdfId && workFactor == other.workFactor && Arrays.equals(salt, other.salt);
+    }
+
+    /**
+     * @return the same header, with another iv (for the parts of a file encrypted separately)
+     */
+    public VaultHeader withIv(byte[] iv) {
+        return new VaultHeader(version, flags, kdfId, workFactor, salt, iv);
+    }
+
+    // ------------------------------------- io
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC);
+        out.writeByte(version);
+        out.writeByte(flags);
+        out.writeByte(kdfId);
+        out.writeInt(workFactor);
+        out.writeByte(salt.length);
+        out.write(salt);
+        out.writeByte(iv.length);
+        out.write(iv);
+        out.flush();
+    }
+
+    /**
+     * Read a header.
+     *
+     * @param stream the stream, positioned at the start of the header
+     * @return the header
+     * @throws IOException if the stream does not start with a valid header, or if its work factor is out of
+     *                     the bounds of its key derivation function (see {@link Kdf#checkWorkFactor(int)})
+     */
+    public static VaultHeader read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("invalid header");
+
+        int version = in.readUnsignedByte();
+        if (version > VERSION) throw new IOException("unsupported file version " + version);
+        int flags = in.readUnsignedByte();
+        int kdfId = in.readUnsignedByte();
+        int workFactor = in.readInt();
+        checkWorkFactor(kdfId, workFactor);
+        byte[] salt = new byte[in.readUnsignedByte()];
+        in.readFully(salt);
+        byte[] iv = new byte[in.readUnsignedByte()];
+        in.readFully(iv);
+        return new VaultHeader(version, flags, kdfId, workFactor, salt, iv);
+    }
+
+    // the header is not authenticated: do not derive a key with whatever work factor it holds
+    private static void checkWorkFactor(int kdfId, int workFactor) throws IOException {
+        Kdf kdf;
+        try {
+            kdf = Kdf.get(kdfId);
+        } catch (GeneralSecurityException e) {
+            // unknown function: reported when deriving the key
+            return;
+        }
+        try {
+            kdf.checkWorkFactor(workFactor);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Check if the stream starts with a header, without consuming it.
+     *
+     * @param stream a stream supporting mark/reset
+     * @return true if the stream starts with the magic number of the header
+     */
+    public static boolean isPresent(InputStream stream) throws IOException {
+        stream.mark(MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int read = 0, n = 0;
+        while (read < magic.length && (n = stream.read(magic, read, magic.length - read)) > 0) read += n;
+        stream.reset();
+        return read == magic.length && Arrays.equals(magic, MAGIC);
+    }
+}
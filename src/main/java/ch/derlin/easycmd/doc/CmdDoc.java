@@ -26,15 +26,32 @@ import java.util.stream.Collectors;
  */
 public class CmdDoc {
     private List<CmdDescription> commandsUsage;
+    // true if built from the documentation compiled at build time (see CmdIndexGenerator)
+    private final boolean compiled;
     private static final String NEW_LINE = System.getProperty("line.separator");
 
 
+    /**
+     * Create a doc object from the man.json of the application, compiled at build time into
+     * {@link CmdIndex} (see {@link CmdIndexGenerator}): no json parsing, the help and man texts
+     * are already rendered and the lookups by name are a switch.
+     */
+    public CmdDoc() {
+        compiled = true;
+        commandsUsage = new ArrayList<>(CmdIndex.NAMES.length);
+        for (int i = 0; i < CmdIndex.NAMES.length; i++) {
+            commandsUsage.add(new CmdDescription(CmdIndex.NAMES[i], CmdIndex.ARGS[i], CmdIndex.DESCRS[i]));
+        }//end for
+    }
+
+
     /**
      * Create a doc object which will fetch the documentation from the given stream
      *
      * @param stream the stream from the json file
      */
     public CmdDoc(InputStream stream) {
+        compiled = false;
         CmdDescription[] descr = (CmdDescription[]) getJsonFromFile(stream, new CmdDescription[0]);
         commandsUsage = new ArrayList<>(Arrays.asList(descr));
     }
@@ -46,6 +63,7 @@ public class CmdDoc {
      * @return the string
      */
     public String man() {
+        if (compiled) return CmdIndex.MAN;
         return commandsUsage.stream()   //
                 .map(CmdDescription::fullDescription)   //
                 .collect(Collectors.joining(NEW_LINE + "* "));
@@ -59,6 +77,7 @@ public class CmdDoc {
      * @return the string
      */
     public String help() {
+        if (compiled) return CmdIndex.HELP;
         return "Available commands: " + commandsUsage.stream()   //
                 .map(CmdDescription::toString)   //
                 .collect(Collectors.joining(", "));
@@ -72,6 +91,10 @@ public class CmdDoc {
      * @return the command description or null if the command does not exist/is not documented
      */
     public CmdDescription get(String cmd) {
+        if (compiled) {
+            int i = cmd == null ? -1 : CmdIndex.indexOf(cmd);
+            return i < 0 ? null : commandsUsage.get(i);
+        }
         Optional<CmdDescription> descr = commandsUsage.stream()  //
                 .filter(s -> s.name.equals(cmd))  //
                 .findFirst();
@@ -90,27 +113,50 @@ public class CmdDoc {
 
     /**
      * Get the closest command matching the given string based on the
-     * Levenshtein distance metric
+     * Levenshtein distance metric. Typos of one character are resolved with the
+     * compiled deletion neighbourhood; a larger threshold, or a documentation read
+     * from json, compares the input with every command, giving up early on each.
      *
      * @param cmd       the input
-     * @param threshold the maximum tolerated distance for a match
-     * @return the closest available command
+     * @param threshold the maximum tolerated distance for a match (exclusive)
+     * @return the closest available command, the first documented one in case of a tie
      */
     public CmdDescription betterMatch(String cmd, int threshold) {
-        int minDist = Integer.MAX_VALUE;
+        if (compiled && threshold <= 2) return nearMatch(cmd, threshold - 1);
         CmdDescription betterMatch = null;
-
+        int minDist = threshold;
         for (CmdDescription s : commandsUsage) {
-            int distance = LevenshteinDistance.getDistance(s.name, cmd);
+            if (minDist <= 0) break;
+            int distance = LevenshteinDistance.getDistance(s.name, cmd, minDist - 1);
             if (distance < minDist) {
                 minDist = distance;
                 betterMatch = s;
             }
         }//end for
-
-        return minDist < threshold ? betterMatch : null;
+        return betterMatch;
     }//end betterMatch
 
+
+    // the closest command within one edit: the command and the typo share a key of their
+    // deletion neighbourhoods (equal, one deletion, one insertion or one substitution)
+    private CmdDescription nearMatch(String cmd, int maxDistance) {
+        if (maxDistance < 0) return null;
+        int best = -1, bestDistance = maxDistance + 1;
+        for (int deleted = -1; deleted < cmd.length(); deleted++) {
+            String key = deleted < 0 ? cmd : cmd.substring(0, deleted) + cmd.substring(deleted + 1);
+            int k = Arrays.binarySearch(CmdIndex.DELETIONS, key);
+            if (k < 0) continue;
+            for (int i : CmdIndex.DELETION_COMMANDS[k]) {
+                int distance = LevenshteinDistance.getDistance(CmdIndex.NAMES[i], cmd, maxDistance);
+                if (distance < bestDistance || (distance == bestDistance && i < best)) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }//end for
+        }//end for
+        return best < 0 ? null : commandsUsage.get(best);
+    }
+
     // ----------------------------------------------------
 
 
@@ -150,6 +196,18 @@ public class CmdDoc {
         private String name, args, descr;
 
 
+        private CmdDescription() {
+            // for gson
+        }
+
+
+        CmdDescription(String name, String args, String descr) {
+            this.name = name;
+            this.args = args;
+            this.descr = descr;
+        }
+
+
         public String getName() {
             return name;
         }
@@ -0,0 +1,202 @@
+package ch.derlin.easycmd.doc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compiles the commands documentation (man.json, see {@link CmdDoc}) into the {@link CmdIndex} class,
+ * so that the documentation needs no json parsing at runtime.
+ * <p>
+ * It runs as an annotation processor of the main compilation (see the pom): the path of the json file
+ * is given by the <code>-Aeasycmd.doc=&lt;path&gt;</code> option. The generated class holds:
+ * <ul>
+ * <li>the commands, in the documentation order, and a switch from a name to its position;</li>
+ * <li>the help and man texts, rendered;</li>
+ * <li>the deletion neighbourhood of the names (each name and all its one-character deletions, sorted),
+ * which finds the names within one edit of a typo with a few binary searches.</li>
+ * </ul>
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions(CmdIndexGenerator.OPTION)
+public class CmdIndexGenerator extends AbstractProcessor {
+
+    public static final String OPTION = "easycmd.doc";
+    public static final String CLASS_NAME = "ch.derlin.easycmd.doc.CmdIndex";
+
+    private boolean generated;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (generated) return false;
+        generated = true;
+
+        String path = processingEnv.getOptions().get(OPTION);
+        if (path == null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "missing option -A" + OPTION);
+            return false;
+        }
+        try (Reader in = new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8);
+             Writer out = processingEnv.getFiler().createSourceFile(CLASS_NAME).openWriter()) {
+            out.write(generate(new JsonParser().parse(in).getAsJsonArray()));
+        } catch (IOException | RuntimeException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "cannot compile the documentation " + path + ": " + e);
+        }
+        return false;
+    }
+
+    // ------------------------------------- generation
+
+    static String generate(JsonArray commands) {
+        List<String> names = new ArrayList<>(), args = new ArrayList<>(), descrs = new ArrayList<>();
+        for (JsonElement element : commands) {
+            JsonObject command = element.getAsJsonObject();
+            names.add(string(command, "name"));
+            args.add(string(command, "args"));
+            descrs.add(string(command, "descr"));
+        }//end for
+
+        // deletion neighbourhood: key => positions of the commands
+        SortedMap<String, SortedSet<Integer>> deletions = new TreeMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            for (String key : neighbourhood(names.get(i))) {
+                deletions.computeIfAbsent(key, k -> new TreeSet<>()).add(i);
+            }//end for
+        }//end for
+
+        StringBuilder java = new StringBuilder();
+        java.append("package ch.derlin.easycmd.doc;\n\n");
+        java.append("/**\n * The commands documentation, compiled from man.json by ")
+                .append(CmdIndexGenerator.class.getSimpleName()).append(". Do not edit.\n */\n");
+        java.append("final class CmdIndex {\n\n");
+        java.append("    static final String NL = System.getProperty(\"line.separator\");\n\n");
+        java.append("    static final String[] NAMES = ").append(array(names)).append(";\n");
+        java.append("    static final String[] ARGS = ").append(array(args)).append(";\n");
+        java.append("    static final String[] DESCRS = ").append(array(descrs)).append(";\n\n");
+
+        // same rendering as CmdDoc.help() and CmdDoc.man()
+        java.append("    static final String HELP = ").append(literal("Available commands: " + String.join(", ", names)))
+                .append(";\n");
+        java.append("    static final String MAN = ");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) java.append("\n            + NL + \"* \" + ");
+            java.append(literal(names.get(i) + " " + args.get(i))).append(" + NL + ")
+                    .append(literal("    " + descrs.get(i) + " "));
+        }//end for
+        if (names.isEmpty()) java.append("\"\"");
+        java.append(";\n\n");
+
+        java.append("    // each name and its one-character deletions, sorted, and the positions of their commands\n");
+        java.append("    static final String[] DELETIONS = ").append(array(deletions.keySet())).append(";\n");
+        java.append("    static final int[][] DELETION_COMMANDS = {");
+        String separator = "";
+        for (SortedSet<Integer> positions : deletions.values()) {
+            java.append(separator).append("{");
+            java.append(String.join(", ", positions.stream().map(String::valueOf).toArray(String[]::new)));
+            java.append("}");
+            separator = ", ";
+        }//end for
+        java.append("};\n\n");
+
+        java.append("    static int indexOf(String name) {\n");
+        java.append("        switch (name) {\n");
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < names.size(); i++) {
+            // the first one wins, as with a linear search
+            if (names.get(i) != null && seen.add(names.get(i))) {
+                java.append("            case ").append(literal(names.get(i))).append(":\n");
+                java.append("                return ").append(i).append(";\n");
+            }
+        }//end for
+        java.append("            default:\n");
+        java.append("                return -1;\n");
+        java.append("        }\n");
+        java.append("    }\n\n");
+        java.append("    private CmdIndex() {\n");
+        java.append("    }\n");
+        java.append("}\n");
+        return java.toString();
+    }
+
+    /**
+     * @return the word and all its one-character deletions
+     */
+    static Set<String> neighbourhood(String word) {
+        Set<String> keys = new LinkedHashSet<>();
+        keys.add(word);
+        for (int i = 0; i < word.length(); i++) {
+            keys.add(word.substring(0, i) + word.substring(i + 1));
+        }//end for
+        return keys;
+    }
+
+    // ------------------------------------- private utils
+
+    private static String string(JsonObject object, String field) {
+        JsonElement value = object.get(field);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    private static String array(Collection<String> values) {
+        StringBuilder builder = new StringBuilder("{");
+        String separator = "";
+        for (String value : values) {
+            builder.append(separator).append(literal(value));
+            separator = ", ";
+        }//end for
+        return builder.append("}").toString();
+    }
+
+    private static String literal(String value) {
+        if (value == null) return "null";
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7E) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }//end for
+        return builder.append("\"").toString();
+    }
+}
@@ -11,6 +11,9 @@ public class LevenshteinDistance {
 
     static boolean debug = false;
 
+    // row buffers of the bounded distance, reused by all the calls of a thread
+    private static final ThreadLocal<int[][]> ROWS = ThreadLocal.withInitial( () -> new int[ 2 ][ 32 ] );
+
 
     public static void main( String[] args ){
         System.out.println( getDistance( "abcde", "bgdfe" ) );
@@ -67,4 +70,62 @@ public class LevenshteinDistance {
 
         return lastLine[ lastLine.length - 1 ]; // since we swapped, get the last cell of the LAST line
     }//end getDistance
+
+
+    /**
+     * Same as {@link #getDistance(String, String)}, but only computes the band of the matrix
+     * around the diagonal where the distance can stay within max, and gives up as soon as a
+     * whole line exceeds it. Does not allocate (the lines are reused).
+     *
+     * @param max the maximum distance of interest
+     * @return the distance, or max + 1 if it is greater than max
+     */
+    public static int getDistance( String a, String b, int max ){
+
+        if( a.equals( b ) ) return 0;
+        // be sure that a is smaller than b
+        if( a.length() > b.length() ) return getDistance( b, a, max );
+        // the distance is at least the difference of length, at most the longest length
+        if( b.length() - a.length() > max ) return max + 1;
+        if( max > b.length() ) max = b.length();
+        int outside = max + 1;
+
+        int[][] rows = ROWS.get();
+        if( rows[ 0 ].length < a.length() + 1 ){
+            rows[ 0 ] = new int[ a.length() + 1 ];
+            rows[ 1 ] = new int[ a.length() + 1 ];
+        }
+        int[] lastLine = rows[ 0 ], currentLine = rows[ 1 ];
+        for( int i = 0; i <= a.length(); i++ ){
+            lastLine[ i ] = i <= max ? i : outside;
+        }//end for
+
+        for( int lineIndex = 1; lineIndex < b.length() + 1; lineIndex++ ){
+            // the band: the cells further than max from the diagonal cannot be within max
+            int from = Math.max( 1, lineIndex - max ), to = Math.min( a.length(), lineIndex + max );
+            currentLine[ 0 ] = lineIndex <= max ? lineIndex : outside;
+            if( from > 1 ) currentLine[ from - 1 ] = outside;
+            int lineMin = currentLine[ from - 1 ];
+
+            char charAdded = b.charAt( lineIndex - 1 );
+            for( int col = from; col <= to; col++ ){
+                int min = Math.min( lastLine[ col ], currentLine[ col - 1 ] ) + 1;
+                int diagonal = lastLine[ col - 1 ] + ( a.charAt( col - 1 ) == charAdded ? 0 : 1 );
+                min = Math.min( Math.min( min, diagonal ), outside );
+                currentLine[ col ] = min;
+                if( min < lineMin ) lineMin = min;
+            }//end for
+            // right of the band, read by the next line
+            if( to < a.length() ) currentLine[ to + 1 ] = outside;
+
+            // the distance only grows from line to line
+            if( lineMin > max ) return outside;
+
+            int[] temp = currentLine;
+            currentLine = lastLine;
+            lastLine = temp;
+        }//end for
+
+        return lastLine[ a.length() ];
+    }//end getDistance
 }//end class
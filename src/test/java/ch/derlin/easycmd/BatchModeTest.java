@@ -0,0 +1,177 @@
+package ch.derlin.easycmd;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs scripts of commands with -b, in another JVM (EasyCmd exits when the script is done).
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class BatchModeTest {
+
+    private static final String PASSWORD = "pw";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String filepath;
+
+    @Before
+    public void setup() throws Exception {
+        filepath = folder.getRoot().toPath().resolve("vault").toString();
+        List<Account> accounts = new ArrayList<>();
+        for (String name : new String[]{"bank", "mail", "shop"}) {
+            Account a = new Account();
+            a.name = name;
+            a.pseudo = name + "-user";
+            a.setPassword(name + "-pass");
+            accounts.add(a);
+        }//end for
+        AccountsMap.toEncryptedFile(filepath, new SessionKey(PASSWORD, Kdf.PBKDF2_SHA256, 10_000), accounts);
+    }
+
+    @Test
+    public void indexesPointToThePrintedAccounts() throws Exception {
+        List<JsonObject> records = run(
+                "find",
+                "delete 0",
+                "show 1",
+                "show 0",
+                "find",
+                "show 0");
+
+        assertEquals("bank", records.get(0).getAsJsonArray("results").get(0).getAsJsonObject().get("name").getAsString());
+        // still the list printed by the first find
+        assertEquals("mail", account(records.get(2)));
+        assertEquals("error", records.get(3).get("status").getAsString());
+        assertNull(records.get(3).get("account"));
+        assertEquals("mail", account(records.get(5)));
+    }
+
+    @Test
+    public void everyLineIsJson() throws Exception {
+        String[] script = {
+                "# a comment",
+                "find",
+                "",
+                "show 0",
+                "showpass 1",
+                "copy pseudo 2",
+                "edit 0",
+                "{}",
+                "new travel",
+                "{\"pseudo\": \"me\", \"password\": \"secret\"}",
+                "find a",
+                "next",
+                "prev",
+                "help",
+                "man find",
+                "shw 0",
+                "delete 1",
+                "show 42",
+                "exit"};
+        List<String> lines = output(script);
+        assertFalse(lines.isEmpty());
+        List<JsonObject> records = new ArrayList<>();
+        for (String line : lines) {
+            JsonElement element = new JsonParser().parse(line);
+            assertTrue(line, element.isJsonObject());
+            assertNotNull(line, element.getAsJsonObject().get("status"));
+            records.add(element.getAsJsonObject());
+        }//end for
+
+        // printed through ConsoleReader#println
+        JsonObject edit = records.get(4);
+        assertEquals("edit 0", edit.get("command").getAsString());
+        assertEquals("nothing to save.", edit.getAsJsonArray("messages").get(0).getAsString());
+    }
+
+    @Test
+    public void editKeepsTheAccountsWithTheSameNameInAnotherCase() throws Exception {
+        List<Account> accounts = new ArrayList<>();
+        for (String name : new String[]{"Foo", "foo"}) {
+            Account a = new Account();
+            a.name = name;
+            a.pseudo = name + "-user";
+            accounts.add(a);
+        }//end for
+        AccountsMap.toEncryptedFile(filepath, new SessionKey(PASSWORD, Kdf.PBKDF2_SHA256, 10_000), accounts);
+
+        List<JsonObject> records = run(
+                "find",
+                "edit 1",
+                "{\"pseudo\": \"changed\"}",
+                "find");
+
+        assertEquals("ok", records.get(1).get("status").getAsString());
+        AccountsMap saved = AccountsMap.fromEncryptedFile(filepath, PASSWORD);
+        assertEquals(Arrays.asList("Foo", "foo"), new ArrayList<>(saved.keySet()));
+        assertEquals("Foo-user", saved.get("Foo").pseudo);
+        assertEquals("changed", saved.get("foo").pseudo);
+        assertEquals(2, records.get(2).getAsJsonArray("results").size());
+    }
+
+    // ----------------------------------------------------
+
+    /**
+     * Run the script on the vault.
+     *
+     * @return the json records printed
+     */
+    List<JsonObject> run(String... commands) throws IOException, InterruptedException {
+        List<JsonObject> records = new ArrayList<>();
+        for (String line : output(commands)) {
+            records.add(new JsonParser().parse(line).getAsJsonObject());
+        }//end for
+        return records;
+    }
+
+    /**
+     * Run the script on the vault.
+     *
+     * @return the lines printed
+     */
+    List<String> output(String... commands) throws IOException, InterruptedException {
+        Path script = folder.newFile().toPath();
+        Files.write(script, Arrays.asList(commands), StandardCharsets.UTF_8);
+        Path output = folder.newFile().toPath();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                EasyCmd.class.getName(), "-f", filepath, "-p", PASSWORD, "-b", script.toString())
+                .redirectOutput(output.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        assertTrue("the script timed out", process.waitFor(60, TimeUnit.SECONDS));
+        return Files.readAllLines(output, StandardCharsets.UTF_8);
+    }
+
+    private static String account(JsonObject record) {
+        assertEquals(record.toString(), "ok", record.get("status").getAsString());
+        return record.getAsJsonObject("account").get("name").getAsString();
+    }
+}
@@ -0,0 +1,166 @@
+package ch.derlin.easycmd;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsJournal;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.accounts.BackgroundSaver;
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class SingleShotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String filepath;
+    private SessionKey key;
+    private String out, err;
+
+    @Before
+    public void setup() throws Exception {
+        filepath = folder.getRoot().toPath().resolve("vault").toString();
+        key = new SessionKey("pw", Kdf.PBKDF2_SHA256, 10_000);
+    }
+
+    @Test
+    public void exactName() throws Exception {
+        write(0);
+        assertEquals(0, run("get", "pseudo", "bank", "-f", filepath, "-p", "pw"));
+        assertEquals("bank-user", out);
+        // ignoring case and whitespaces, and preferred to the accounts containing it
+        assertEquals(0, run("get", "pass", "MY", " bank", "-f", filepath, "-p", "pw"));
+        assertEquals("my bank-pass", out);
+        assertEquals("", err);
+    }
+
+    @Test
+    public void searchTerm() throws Exception {
+        write(0);
+        assertEquals(0, run("get", "pseudo", "sho", "-f", filepath, "-p", "pw"));
+        assertEquals("shop-user", out);
+        assertEquals(0, run("get", "name", "name:mai", "-f", filepath, "-p", "pw"));
+        assertEquals("mail", out);
+    }
+
+    @Test
+    public void ambiguousTerm() throws Exception {
+        write(0);
+        assertEquals(1, run("get", "pseudo", "ban", "-f", filepath, "-p", "pw"));
+        assertEquals("", out);
+        assertTrue(err, err.startsWith("ambiguous account: [bank, my bank]"));
+
+        assertEquals(1, run("get", "pseudo", "shoe", "-f", filepath, "-p", "pw"));
+        assertTrue(err, err.startsWith("not match."));
+        assertTrue(err, err.contains("did you mean: shop?"));
+    }
+
+    @Test
+    public void missingField() throws Exception {
+        write(0);
+        assertEquals(1, run("get", "color", "bank", "-f", filepath, "-p", "pw"));
+        assertEquals("", out);
+        assertEquals("invalid field color", err);
+
+        assertEquals(1, run("get", "pseudo", "-f", filepath, "-p", "pw"));
+        assertTrue(err, err.startsWith("usage: get <field>"));
+    }
+
+    @Test
+    public void wrongPassword() throws Exception {
+        write(0);
+        assertEquals(1, run("get", "pseudo", "bank", "-f", filepath, "-p", "nope"));
+        assertEquals("", out);
+        assertEquals("wrong credentials", err);
+
+        write(VaultHeader.FLAG_BLOCKS);
+        assertEquals(1, run("get", "pseudo", "bank", "-f", filepath, "-p", "nope"));
+        assertEquals("wrong credentials", err);
+    }
+
+    @Test
+    public void blockVaultWithAJournal() throws Exception {
+        write(VaultHeader.FLAG_BLOCKS | VaultHeader.FLAG_DEFLATE);
+        assertEquals(0, run("get", "pseudo", "bank", "-f", filepath, "-p", "pw"));
+        assertEquals("bank-user", out);
+
+        List<IOException> errors = new ArrayList<>();
+        BackgroundSaver saver = new BackgroundSaver(errors::add);
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        AccountsJournal journal = AccountsJournal.open(filepath, key, accounts, saver);
+        Account renamed = accounts.get("bank").copy();
+        renamed.name = "savings";
+        renamed.pseudo = "renamed";
+        journal.logPut("bank", renamed);
+        Account edited = accounts.get("mail").copy();
+        edited.pseudo = "edited";
+        journal.logPut(edited);
+        journal.logRemove("shop");
+        journal.close();
+        saver.close();
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        // changed by the journal
+        assertEquals(0, run("get", "pseudo", "savings", "-f", filepath, "-p", "pw"));
+        assertEquals("renamed", out);
+        assertEquals(0, run("get", "pseudo", "MAIL", "-f", filepath, "-p", "pw"));
+        assertEquals("edited", out);
+        // still in the vault, but not anymore: the search finds the other one
+        assertEquals(0, run("get", "pseudo", "bank", "-f", filepath, "-p", "pw"));
+        assertEquals("my bank-user", out);
+        assertEquals(1, run("get", "pseudo", "shop", "-f", filepath, "-p", "pw"));
+        assertTrue(err, err.startsWith("not match."));
+        // untouched, and found by a search
+        assertEquals(0, run("get", "pseudo", "my", "bank", "-f", filepath, "-p", "pw"));
+        assertEquals("my bank-user", out);
+        assertEquals(0, run("get", "pseudo", "sav", "-f", filepath, "-p", "pw"));
+        assertEquals("renamed", out);
+    }
+
+    // ----------------------------------------------------
+
+    private void write(int format) throws IOException {
+        List<Account> accounts = new ArrayList<>();
+        for (String name : Arrays.asList("bank", "mail", "my bank", "shop")) {
+            Account a = new Account();
+            a.name = name;
+            a.pseudo = name + "-user";
+            a.setPassword(name + "-pass");
+            accounts.add(a);
+        }//end for
+        AccountsMap.toEncryptedFile(filepath, key, accounts, format);
+    }
+
+    /**
+     * Run the command, keep what it printed (trimmed) in {@link #out} and {@link #err}.
+     */
+    private int run(String... args) throws Exception {
+        ByteArrayOutputStream outBytes = new ByteArrayOutputStream(), errBytes = new ByteArrayOutputStream();
+        int status;
+        try (PrintStream o = new PrintStream(outBytes, true, "UTF-8"); PrintStream e = new PrintStream(errBytes, true, "UTF-8")) {
+            status = SingleShot.run(args, o, e);
+        }
+        out = new String(outBytes.toByteArray(), StandardCharsets.UTF_8).trim();
+        err = new String(errBytes.toByteArray(), StandardCharsets.UTF_8).trim();
+        return status;
+    }
+}
@@ -0,0 +1,210 @@
+package ch.derlin.easycmd.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link AccountsMap#find(String...)} with a straightforward evaluation of the query syntax
+ * (see {@link AccountQuery}) on every account.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AccountQueryTest {
+
+    private static final String[] FIELDS = {"name", "pseudo", "email", "notes"};
+
+    @Test
+    public void examples() {
+        AccountsMap accounts = new AccountsMap();
+        accounts.put("bank", account("bank", "me", "me@mail.com", "savings", "2017-02-10T10:00", "2018-06-01T10:00"));
+        accounts.put("banking", account("banking", "you", "", "", "2018-01-01T10:00", null));
+        accounts.put("mail", account("mail", "bank", "x@bank.com", "", "", "2016-12-31T23:59"));
+
+        assertEquals(Arrays.asList("bank", "banking", "mail"), accounts.find("bank"));
+        assertEquals(Arrays.asList("bank", "banking"), accounts.find("name:bank"));
+        assertEquals(Arrays.asList("bank"), accounts.find("name:=BANK"));
+        assertEquals(Arrays.asList("bank", "banking"), accounts.find("name:ban*"));
+        assertEquals(Arrays.asList("mail"), accounts.find("bank", "NOT", "name:bank"));
+        assertEquals(Arrays.asList("bank", "mail"), accounts.find("savings", "OR", "pseudo:bank"));
+        assertEquals(Arrays.asList("bank"), accounts.find("created:2017"));
+        assertEquals(Arrays.asList("bank", "banking"), accounts.find("created:2017-02..2018-01"));
+        assertEquals(Arrays.asList("banking"), accounts.find("created:2018.."));
+        assertEquals(Arrays.asList("mail"), accounts.find("modified:..2017"));
+        // not valid in the syntax: plain searches
+        assertEquals(Arrays.asList("mail"), accounts.find("x@bank"));
+        assertEquals(Collections.emptyList(), accounts.find("created:yesterday"));
+        assertEquals(Collections.emptyList(), accounts.find("bank", "OR"));
+        assertEquals(Collections.emptyList(), accounts.find("bank", "NOT"));
+        // the OR separates "bank NOT" from "savings"
+        assertEquals(Arrays.asList("bank"), accounts.find("bank", "NOT", "OR", "savings"));
+    }
+
+    @Test
+    public void findIsTheFullScan() {
+        Random random = new Random(23);
+        AccountsMap accounts = new AccountsMap(), scanned = new AccountsMap();
+        for (int i = 0; i < 500; i++) {
+            Account a = account(randomString(random, 1, 5) + i, randomString(random, 0, 6),
+                    randomString(random, 0, 4) + "@" + randomString(random, 0, 3), randomString(random, 0, 30),
+                    randomDate(random), randomDate(random));
+            accounts.put(a.name, a);
+            scanned.put(a.name, a);
+        }//end for
+
+        int matched = 0;
+        for (int i = 0; i < 5000; i++) {
+            String[] terms = randomQuery(random);
+            String query = Arrays.toString(terms);
+            List<String> expected = new ArrayList<>();
+            String[] literals = AccountQuery.parse(terms).getLiterals();
+            for (Account a : accounts.values()) {
+                if (matches(a, terms)) {
+                    expected.add(a.name);
+                    assertTrue(query + " " + Arrays.toString(literals) + " rejects " + a, a.containsLower(literals));
+                }
+            }//end for
+            assertEquals(query, expected, accounts.find(terms));
+            // without the index
+            assertEquals(query, expected, scanned.findOnce(terms));
+            matched += expected.size();
+        }//end for
+        // the comparison is not only on empty results
+        assertTrue(matched > 5000);
+    }
+
+    // ----------------------------------------------------
+
+    /**
+     * The query, evaluated term by term: OR separates groups of terms which must all match,
+     * NOT negates the next term, a dangling operator is a plain term.
+     */
+    private static boolean matches(Account a, String[] terms) {
+        List<List<String>> groups = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        for (int i = 0; i < terms.length; i++) {
+            if (terms[i].equals("OR") && i + 1 < terms.length && !group.isEmpty()) {
+                groups.add(group);
+                group = new ArrayList<>();
+            } else {
+                group.add(terms[i]);
+            }
+        }//end for
+        groups.add(group);
+
+        for (List<String> g : groups) {
+            if (allMatch(a, g)) return true;
+        }//end for
+        return false;
+    }
+
+    private static boolean allMatch(Account a, List<String> terms) {
+        for (int i = 0; i < terms.size(); i++) {
+            boolean negated = false;
+            while (terms.get(i).equals("NOT") && i + 1 < terms.size()) {
+                negated = !negated;
+                i++;
+            }//end while
+            if (termMatches(a, terms.get(i)) == negated) return false;
+        }//end for
+        return true;
+    }
+
+    private static boolean termMatches(Account a, String term) {
+        int colon = term.indexOf(':');
+        if (colon > 0) {
+            String scope = term.substring(0, colon).toLowerCase(), value = term.substring(colon + 1);
+            int field = Arrays.asList(FIELDS).indexOf(scope.equals("note") ? "notes" : scope);
+            if (field >= 0) {
+                String s = a.get(FIELDS[field]).toLowerCase();
+                value = value.toLowerCase();
+                if (value.startsWith("=")) return s.equals(value.substring(1));
+                if (value.endsWith("*")) return s.startsWith(value.substring(0, value.length() - 1));
+                return s.contains(value);
+            }
+            if (scope.equals("created") || scope.equals("modified")) {
+                String[] bounds = value.contains("..") ? value.split("\\.\\.", -1) : new String[]{value, value};
+                boolean valid = !(bounds[0].isEmpty() && bounds[1].isEmpty());
+                for (String bound : bounds) valid &= bound.isEmpty() || bound.matches("\\d{4}(-\\d\\d(-\\d\\d(T[0-9:.]*)?)?)?");
+                if (valid) {
+                    String date = scope.equals("created") ? a.creationDate : a.modificationDate;
+                    if (date == null || date.isEmpty()) return false;
+                    return (bounds[0].isEmpty() || date.compareTo(bounds[0]) >= 0)
+                            && (bounds[1].isEmpty() || date.compareTo(bounds[1]) <= 0 || date.startsWith(bounds[1]));
+                }
+            }
+        }
+        return a.contains(term);
+    }
+
+    static String[] randomQuery(Random random) {
+        String[] terms = new String[1 + random.nextInt(5)];
+        for (int i = 0; i < terms.length; i++) {
+            switch (random.nextInt(10)) {
+                case 0:
+                    terms[i] = "OR";
+                    break;
+                case 1:
+                    terms[i] = "NOT";
+                    break;
+                case 2:
+                    String from = random.nextInt(3) == 0 ? "" : randomDateBound(random);
+                    String to = random.nextInt(3) == 0 ? "" : randomDateBound(random);
+                    terms[i] = (random.nextBoolean() ? "created:" : "modified:")
+                            + (random.nextInt(3) == 0 ? from : from + ".." + to);
+                    break;
+                case 3:
+                case 4:
+                case 5:
+                    String[] scopes = {"name", "pseudo", "email", "notes", "note", "NAME", "other"};
+                    String[] modes = {"", "", "=", "*"};
+                    String mode = modes[random.nextInt(modes.length)], value = randomString(random, 0, 4);
+                    terms[i] = scopes[random.nextInt(scopes.length)] + ":"
+                            + (mode.equals("=") ? "=" + value : mode.equals("*") ? value + "*" : value);
+                    break;
+                default:
+                    terms[i] = randomString(random, 1, 4);
+            }
+        }//end for
+        return terms;
+    }
+
+    private static String randomString(Random random, int min, int max) {
+        char[] chars = new char[min + random.nextInt(max - min + 1)];
+        for (int i = 0; i < chars.length; i++) chars[i] = "abcAB-".charAt(random.nextInt(6));
+        return new String(chars);
+    }
+
+    private static String randomDate(Random random) {
+        if (random.nextInt(10) == 0) return random.nextBoolean() ? null : "";
+        return String.format("%d-%02d-%02dT%02d:00:00", 2015 + random.nextInt(4), 1 + random.nextInt(12),
+                1 + random.nextInt(28), random.nextInt(24));
+    }
+
+    private static String randomDateBound(Random random) {
+        String date = randomDate(random);
+        if (date == null || date.isEmpty()) return "2017";
+        // a prefix: year, month, day or the whole date
+        int[] lengths = {4, 7, 10, date.length()};
+        return date.substring(0, lengths[random.nextInt(lengths.length)]);
+    }
+
+    private static Account account(String name, String pseudo, String email, String notes, String created, String modified) {
+        Account a = new Account();
+        a.name = name;
+        a.pseudo = pseudo;
+        a.email = email;
+        a.notes = notes;
+        a.creationDate = created;
+        a.modificationDate = modified;
+        return a;
+    }
+}
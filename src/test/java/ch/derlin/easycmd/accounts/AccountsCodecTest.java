@@ -0,0 +1,192 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import ch.derlin.easycmd.crypto.VaultHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static ch.derlin.easycmd.accounts.AccountsJournalTest.account;
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AccountsCodecTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SessionKey key;
+    private List<Account> accounts;
+
+    @Before
+    public void setup() {
+        key = new SessionKey("pw", Kdf.PBKDF2_SHA256, 10_000);
+        accounts = new ArrayList<>();
+        Account a = account("\u00dcn\u00efc\u00f8d\u00e9 \u5e33\u865f");
+        a.email = "\u00e9@example.com";
+        a.notes = "line 1\nline 2\t\"quoted\"";
+        a.creationDate = "2017-10-26T10:00:00";
+        a.modificationDate = "2017-10-26T11:00:00";
+        accounts.add(a);
+        a = account("empty");
+        a.pseudo = "";
+        a.setPassword("");
+        accounts.add(a);
+        a = account("no dates");
+        a.creationDate = null;
+        a.modificationDate = null;
+        accounts.add(a);
+        // enough for several blocks
+        for (int i = 0; i < 2000; i++) {
+            a = account(String.format("account %04d", i));
+            a.notes = "some notes to fill the blocks " + i;
+            accounts.add(a);
+        }//end for
+    }
+
+    @Test
+    public void json() throws Exception {
+        roundTrip(0);
+        roundTrip(VaultHeader.FLAG_DEFLATE);
+    }
+
+    @Test
+    public void binary() throws Exception {
+        roundTrip(VaultHeader.FLAG_BINARY);
+    }
+
+    @Test
+    public void binaryDeflate() throws Exception {
+        roundTrip(VaultHeader.FLAG_BINARY | VaultHeader.FLAG_DEFLATE);
+    }
+
+    @Test
+    public void blocks() throws Exception {
+        roundTrip(VaultHeader.FLAG_BLOCKS);
+        roundTrip(VaultHeader.FLAG_BLOCKS | VaultHeader.FLAG_DEFLATE);
+
+        String filepath = write(VaultHeader.FLAG_BLOCKS);
+        try (BlockVault vault = BlockVault.open(filepath, key)) {
+            assertEquals(accounts.size(), vault.size());
+            for (Account a : accounts) assertFields(a, vault.get(a.name));
+            assertNull(vault.get("missing"));
+        }
+
+        // the vault read in full can be replaced once closed
+        String other = write(VaultHeader.FLAG_BLOCKS | VaultHeader.FLAG_DEFLATE);
+        AccountsMap.fromEncryptedFile(filepath, key);
+        Files.move(Paths.get(other), Paths.get(filepath), StandardCopyOption.REPLACE_EXISTING);
+        assertEquals(VaultHeader.FLAG_BLOCKS | VaultHeader.FLAG_DEFLATE, AccountsMap.fromEncryptedFile(filepath, key).getFormat());
+
+        // the footer does not point at the index anymore
+        byte[] bytes = Files.readAllBytes(Paths.get(filepath));
+        Files.write(Paths.get(filepath), Arrays.copyOf(bytes, bytes.length - 1));
+        try {
+            BlockVault.open(filepath, key).close();
+            fail("opened a truncated vault");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void codec() throws Exception {
+        assertEquals(accounts, decode(encode(accounts)));
+        assertTrue(decode(encode(new ArrayList<>())).isEmpty());
+    }
+
+    @Test
+    public void rejectsOverflowingLengths() throws Exception {
+        // version, one record named "a", then a pseudo length of 2^32 - 1 (negative once in an int), null fields
+        assertCorrupted(bytes(AccountsCodec.VERSION, 0, 0, 0, 1, 2, 'a', 0xFF, 0xFF, 0xFF, 0xFF, 0x0F, 0, 0, 0, 0, 0));
+        assertEquals(1, decode(bytes(AccountsCodec.VERSION, 0, 0, 0, 1, 2, 'a', 0, 0, 0, 0, 0, 0)).size());
+        // more than five bytes
+        assertCorrupted(bytes(AccountsCodec.VERSION, 0, 0, 0, 1, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01));
+        // a valid varint, but longer than any field
+        assertCorrupted(bytes(AccountsCodec.VERSION, 0, 0, 0, 1, 0xFF, 0xFF, 0xFF, 0xFF, 0x07));
+    }
+
+    @Test
+    public void rejectsAWrongRecordCount() throws Exception {
+        byte[] data = encode(accounts.subList(0, 3));
+
+        // fewer records than announced
+        data[4] = 4;
+        assertCorrupted(data);
+        // more
+        data[4] = 2;
+        assertCorrupted(data);
+        // truncated
+        data[4] = 3;
+        assertCorrupted(Arrays.copyOf(data, data.length - 1));
+        assertEquals(3, decode(data).size());
+    }
+
+    // ----------------------------------------------------
+
+    private void roundTrip(int format) throws Exception {
+        AccountsMap read = AccountsMap.fromEncryptedFile(write(format), key);
+        assertEquals(accounts.size(), read.size());
+        for (Account a : accounts) assertFields(a, read.get(a.name));
+    }
+
+    private String write(int format) throws IOException {
+        String filepath = folder.newFile().getPath();
+        AccountsMap.toEncryptedFile(filepath, key, accounts, format);
+        return filepath;
+    }
+
+    private static void assertFields(Account expected, Account actual) {
+        assertNotNull(expected.name, actual);
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.pseudo, actual.pseudo);
+        assertEquals(expected.email, actual.email);
+        assertEquals(expected.getPassword(), actual.getPassword());
+        assertEquals(expected.notes, actual.notes);
+        assertEquals(expected.creationDate, actual.creationDate);
+        assertEquals(expected.modificationDate, actual.modificationDate);
+    }
+
+    private static void assertCorrupted(byte[] data) {
+        try {
+            decode(data);
+            fail("read corrupted data");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] encode(List<Account> accounts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AccountsCodec.INSTANCE.write(out, accounts);
+        return out.toByteArray();
+    }
+
+    private static List<Account> decode(byte[] data) throws IOException {
+        List<Account> accounts = new ArrayList<>();
+        AccountsCodec.INSTANCE.read(new ByteArrayInputStream(data), accounts::add);
+        return accounts;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) bytes[i] = (byte) values[i];
+        return bytes;
+    }
+}
@@ -0,0 +1,234 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AccountsJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // the handler runs on the writer thread: a failure there would not fail the test
+    private final List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+    private String filepath;
+    private SessionKey key;
+    private BackgroundSaver saver;
+
+    @Before
+    public void setup() throws Exception {
+        filepath = folder.getRoot().toPath().resolve("vault").toString();
+        key = new SessionKey("pw", Kdf.PBKDF2_SHA256, 10_000);
+        saver = new BackgroundSaver(errors::add);
+        AccountsMap.toEncryptedFile(filepath, key, Arrays.asList(account("base")));
+    }
+
+    @After
+    public void tearDown() {
+        saver.close();
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    @Test
+    public void replaysTheRecords() throws Exception {
+        writeJournal("a", "b", "c");
+        AccountsMap accounts = reopen();
+        assertEquals(Arrays.asList("a", "b", "base", "c"), accounts.keys());
+    }
+
+    @Test
+    public void ignoresATornLastRecord() throws Exception {
+        writeJournal("a", "b", "c");
+        List<String> lines = journalLines();
+        String last = lines.get(2);
+        lines.set(2, last.substring(0, last.length() / 2));
+        Files.write(journal(), lines, StandardCharsets.US_ASCII);
+
+        AccountsJournal j = AccountsJournal.open(filepath, key, AccountsMap.fromEncryptedFile(filepath, key), null);
+        assertTrue(j.getWarnings().isEmpty());
+    }
+
+    @Test
+    public void keepsADamagedJournal() throws Exception {
+        writeJournal("a", "b", "c", "d");
+        List<String> lines = journalLines();
+        lines.set(1, "garbage");
+        Files.write(journal(), lines, StandardCharsets.US_ASCII);
+
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        AccountsJournal j = AccountsJournal.open(filepath, key, accounts, saver);
+        j.close();
+        // the records after the damaged one are replayed
+        assertEquals(Arrays.asList("a", "base", "c", "d"), accounts.keys());
+        assertEquals(1, j.getWarnings().size());
+        assertTrue(j.getWarnings().get(0), j.getWarnings().get(0).contains("line 2"));
+
+        // set aside, and what could be replayed is in the vault
+        Path aside = Paths.get(journal() + AccountsJournal.DAMAGED_EXTENSION);
+        assertTrue(Files.exists(aside));
+        assertEquals(lines, Files.readAllLines(aside, StandardCharsets.US_ASCII));
+        assertFalse(Files.exists(journal()));
+        assertEquals(Arrays.asList("a", "base", "c", "d"), AccountsMap.fromEncryptedFile(filepath, key).keys());
+    }
+
+    @Test
+    public void createDeletesTheJournalOfThePreviousVault() throws Exception {
+        writeJournal("a");
+        Files.write(Paths.get(filepath + AccountsJournal.PENDING_EXTENSION), journalLines(), StandardCharsets.US_ASCII);
+
+        AccountsMap accounts = new AccountsMap();
+        accounts.put("new", account("new"));
+        AccountsJournal j = AccountsJournal.create(filepath, key, accounts, saver);
+        j.saveAll();
+        j.close();
+
+        assertFalse(Files.exists(journal()));
+        assertFalse(Files.exists(Paths.get(filepath + AccountsJournal.PENDING_EXTENSION)));
+        assertEquals(Arrays.asList("new"), reopen().keys());
+    }
+
+    @Test
+    public void compactsAtTheRecordThreshold() throws Exception {
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        AccountsJournal j = AccountsJournal.open(filepath, key, accounts, saver);
+        List<String> expected = new ArrayList<>(Collections.singletonList("base"));
+        for (int i = 0; i < AccountsJournal.MAX_RECORDS - 1; i++) {
+            String name = String.format("account %02d", i);
+            accounts.put(name, account(name));
+            j.logPut(account(name));
+            expected.add(name);
+        }//end for
+        assertEquals(AccountsJournal.MAX_RECORDS - 1, journalLines().size());
+        assertFalse(Files.exists(pending()));
+
+        accounts.put("last", account("last"));
+        j.logPut(account("last"));
+        expected.add("last");
+        // set aside until the snapshot is written, which the saver delays
+        assertFalse(Files.exists(journal()));
+        assertTrue(Files.exists(pending()));
+
+        j.close();
+        assertFalse(Files.exists(pending()));
+        Collections.sort(expected);
+        assertEquals(expected, AccountsMap.fromEncryptedFile(filepath, key).keys());
+        assertEquals(expected, reopen().keys());
+    }
+
+    @Test
+    public void compactsAtTheByteThreshold() throws Exception {
+        Account large = account("large");
+        char[] notes = new char[(int) AccountsJournal.MAX_BYTES];
+        Arrays.fill(notes, 'x');
+        large.notes = new String(notes);
+
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        AccountsJournal j = AccountsJournal.open(filepath, key, accounts, saver);
+        accounts.put("large", large);
+        j.logPut(large);
+        j.close();
+
+        assertFalse(Files.exists(journal()));
+        assertFalse(Files.exists(pending()));
+        assertEquals(large.notes, AccountsMap.fromEncryptedFile(filepath, key).get("large").notes);
+    }
+
+    @Test
+    public void replaysAfterACrashBeforeTheSnapshot() throws Exception {
+        writeJournal("a", "b", "c");
+        // crashed right after the journal was set aside: the vault was not written
+        Files.move(journal(), pending());
+        AccountsJournal j = AccountsJournal.open(filepath, key, AccountsMap.fromEncryptedFile(filepath, key), saver);
+        j.logRemove("b");
+        j.logPut(account("d"));
+        j.close();
+
+        // the pending records first, then the new journal
+        assertEquals(Arrays.asList("a", "base", "c", "d"), reopen().keys());
+
+        // the next compaction keeps the records of both
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        j = AccountsJournal.open(filepath, key, accounts, saver);
+        j.saveAll();
+        j.close();
+        assertFalse(Files.exists(journal()));
+        assertFalse(Files.exists(pending()));
+        assertEquals(Arrays.asList("a", "base", "c", "d"), AccountsMap.fromEncryptedFile(filepath, key).keys());
+    }
+
+    @Test
+    public void replaysAfterACrashBeforeThePendingIsDeleted() throws Exception {
+        writeJournal("a", "b");
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        AccountsJournal j = AccountsJournal.open(filepath, key, accounts, saver);
+        accounts.remove("a");
+        j.logRemove("a");
+        // the records covered by the snapshot
+        List<String> records = journalLines();
+        j.saveAll();
+        j.close();
+
+        // crashed once the snapshot was written, before the pending journal was deleted
+        Files.write(pending(), records, StandardCharsets.US_ASCII);
+        assertEquals(Arrays.asList("b", "base"), AccountsMap.fromEncryptedFile(filepath, key).keys());
+        // replayed once more, to the same accounts
+        assertEquals(Arrays.asList("b", "base"), reopen().keys());
+        AccountsMap replayed = reopen();
+        assertEquals("b-user", replayed.get("b").pseudo);
+    }
+
+    // ----------------------------------------------------
+
+    private void writeJournal(String... names) throws Exception {
+        AccountsJournal j = AccountsJournal.open(filepath, key, AccountsMap.fromEncryptedFile(filepath, key), saver);
+        for (String name : names) j.logPut(account(name));
+        j.close();
+    }
+
+    private AccountsMap reopen() throws Exception {
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        AccountsJournal.open(filepath, key, accounts, null).close();
+        return accounts;
+    }
+
+    private Path journal() {
+        return Paths.get(filepath + AccountsJournal.EXTENSION);
+    }
+
+    private Path pending() {
+        return Paths.get(filepath + AccountsJournal.PENDING_EXTENSION);
+    }
+
+    private List<String> journalLines() throws IOException {
+        return Files.readAllLines(journal(), StandardCharsets.US_ASCII);
+    }
+
+    static Account account(String name) {
+        Account a = new Account();
+        a.name = name;
+        a.pseudo = name + "-user";
+        a.setPassword(name + "-pass");
+        return a;
+    }
+}
@@ -0,0 +1,85 @@
+package ch.derlin.easycmd.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static ch.derlin.easycmd.accounts.AccountsJournalTest.account;
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AccountsMapTest {
+
+    @Test
+    public void getKeyLowerIgnoresCaseAndWhitespaces() {
+        AccountsMap accounts = map("My  Bank", "mail");
+        assertEquals("My  Bank", accounts.getKeyLower(" my bank"));
+        assertNull(accounts.getKeyLower("my bank2"));
+
+        accounts.put("Shop", account("Shop"));
+        assertEquals("Shop", accounts.getKeyLower("SHOP"));
+        accounts.remove("Shop");
+        assertFalse(accounts.containsKeyLower("shop"));
+    }
+
+    @Test
+    public void keysWithTheSameNormalizedName() {
+        // built with both keys
+        AccountsMap accounts = map("Foo", "foo", "bar");
+        assertEquals("Foo", accounts.getKeyLower("FOO"));
+        accounts.remove("Foo");
+        assertEquals("foo", accounts.getKeyLower("FOO"));
+        accounts.remove("foo");
+        assertFalse(accounts.containsKeyLower("foo"));
+
+        // second key put once the index is built, removed in both orders
+        accounts = map("Foo", "bar");
+        assertTrue(accounts.containsKeyLower("foo"));
+        accounts.put("foo", account("foo"));
+        accounts.put("FOO ", account("FOO "));
+        accounts.remove("foo");
+        assertEquals("FOO ", accounts.getKeyLower("foo"));
+        accounts.remove("FOO ");
+        assertEquals("Foo", accounts.getKeyLower("foo"));
+        accounts.put("foo", account("foo"));
+        accounts.remove("Foo");
+        assertEquals("foo", accounts.getKeyLower("foo"));
+
+        // replacing an account keeps its key
+        accounts.put("foo", account("foo"));
+        assertEquals("foo", accounts.getKeyLower("foo"));
+    }
+
+    @Test
+    public void allKeepsTheKeysOfItsCreation() {
+        AccountsMap accounts = map("a", "b", "c");
+        ResultCursor all = accounts.all();
+        accounts.remove("a");
+        accounts.put("0", account("0"));
+        assertEquals(3, all.size());
+        assertEquals("a", all.get(0));
+        assertEquals("b", all.get(1));
+        assertEquals("c", all.get(2));
+        assertEquals(Arrays.asList("0", "b", "c"), keys(accounts.all()));
+    }
+
+    // ----------------------------------------------------
+
+    static List<String> keys(ResultCursor cursor) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < cursor.size(); i++) keys.add(cursor.get(i));
+        return keys;
+    }
+
+    static AccountsMap map(String... names) {
+        AccountsMap accounts = new AccountsMap();
+        for (String name : names) accounts.put(name, account(name));
+        return accounts;
+    }
+}
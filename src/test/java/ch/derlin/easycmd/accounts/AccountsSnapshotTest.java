@@ -0,0 +1,98 @@
+package ch.derlin.easycmd.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static ch.derlin.easycmd.accounts.AccountsJournalTest.account;
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AccountsSnapshotTest {
+
+    @Test
+    public void randomPutAndRemove() {
+        Random random = new Random(25);
+        TreeMap<String, Account> expected = new TreeMap<>();
+        AccountsSnapshot snapshot = AccountsSnapshot.EMPTY;
+        List<AccountsSnapshot> versions = new ArrayList<>();
+        List<TreeMap<String, Account>> copies = new ArrayList<>();
+
+        for (int i = 0; i < 20_000; i++) {
+            String key = String.format("account %03d", random.nextInt(500));
+            // more puts than removes at first, then the other way round: the tree grows and shrinks
+            if (random.nextInt(20_000) > i / 2 + 2_500) {
+                Account a = account(key);
+                a.notes = "version " + i;
+                expected.put(key, a);
+                snapshot = snapshot.with(key, a);
+            } else {
+                expected.remove(key);
+                snapshot = snapshot.without(key);
+            }
+            assertEquals(expected.size(), snapshot.size());
+            assertSame(expected.get(key), snapshot.get(key));
+            assertEquals(expected.containsKey(key), snapshot.containsKey(key));
+
+            if (i % 500 == 0) {
+                assertSnapshot(expected, snapshot);
+                versions.add(snapshot);
+                copies.add(new TreeMap<>(expected));
+            }
+        }//end for
+
+        // the old versions did not change
+        for (int i = 0; i < versions.size(); i++) assertSnapshot(copies.get(i), versions.get(i));
+    }
+
+    @Test
+    public void buildFromASortedMap() {
+        for (int n = 0; n < 300; n++) {
+            TreeMap<String, Account> accounts = new TreeMap<>();
+            for (int i = 0; i < n; i++) accounts.put("account " + i, account("account " + i));
+            AccountsSnapshot snapshot = AccountsSnapshot.of(accounts);
+            assertSnapshot(accounts, snapshot);
+            // still balanced once modified
+            assertSnapshot(accounts, snapshot.with("a", account("a")).without("a"));
+        }//end for
+    }
+
+    @Test
+    public void mapVersionsDoNotChange() {
+        AccountsMap accounts = AccountsMapTest.map("a", "b", "c");
+        AccountsSnapshot before = accounts.snapshot();
+        Account b = accounts.get("b");
+
+        Account edited = b.copy();
+        edited.notes = "edited";
+        accounts.put("b", edited);
+        accounts.remove("a");
+        accounts.put("d", account("d"));
+
+        assertEquals(AccountsMapTest.map("a", "b", "c").keys(), before.keys());
+        assertSame(b, before.get("b"));
+        assertEquals(accounts.keys(), accounts.snapshot().keys());
+        assertSame(edited, accounts.snapshot().get("b"));
+
+        accounts.clear();
+        assertTrue(accounts.snapshot().isEmpty());
+        assertEquals(3, before.size());
+    }
+
+    // ----------------------------------------------------
+
+    private static void assertSnapshot(TreeMap<String, Account> expected, AccountsSnapshot snapshot) {
+        snapshot.checkTree();
+        assertEquals(expected.size(), snapshot.size());
+        assertEquals(new ArrayList<>(expected.keySet()), snapshot.keys());
+        assertEquals(new ArrayList<>(expected.values()), new ArrayList<>(snapshot.values()));
+        assertEquals(expected, snapshot);
+    }
+}
@@ -0,0 +1,79 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.derlin.easycmd.accounts.AccountsJournalTest.account;
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class BackgroundSaverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+    private BackgroundSaver saver;
+    private SessionKey key;
+    private String filepath;
+
+    @Before
+    public void setup() {
+        saver = new BackgroundSaver(errors::add);
+        key = new SessionKey("pw", Kdf.PBKDF2_SHA256, 10_000);
+        filepath = folder.getRoot().toPath().resolve("vault").toString();
+    }
+
+    @After
+    public void tearDown() {
+        saver.close();
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    @Test
+    public void aBurstOfSavesIsWrittenOnce() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            accounts.add(account("account " + i));
+            saver.submit(filepath, key, new ArrayList<>(accounts), 0, writes::incrementAndGet);
+            // well within the coalescing delay, but each submit wakes the writer up
+            Thread.sleep(BackgroundSaver.COALESCE_DELAY_MS / 20);
+        }//end for
+        saver.drain();
+
+        assertEquals(1, writes.get());
+        assertEquals(5, AccountsMap.fromEncryptedFile(filepath, key).size());
+    }
+
+    @Test
+    public void savesAfterTheDelayAreWrittenAgain() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        saver.submit(filepath, key, Arrays.asList(account("a")), 0, writes::incrementAndGet);
+        saver.drain();
+        saver.submit(filepath, key, Arrays.asList(account("a"), account("b")), 0, writes::incrementAndGet);
+        saver.drain();
+
+        assertEquals(2, writes.get());
+        assertEquals(Arrays.asList("a", "b"), AccountsMap.fromEncryptedFile(filepath, key).keys());
+        assertFalse(Files.exists(Paths.get(filepath + ".tmp")));
+    }
+}
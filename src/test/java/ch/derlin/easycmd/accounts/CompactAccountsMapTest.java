@@ -0,0 +1,197 @@
+package ch.derlin.easycmd.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares a {@link CompactAccountsMap} with the {@link AccountsMap} it was copied from.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class CompactAccountsMapTest {
+
+    // ascii, accented, turkish i's and a few case duplicates
+    private static final String ALPHABET = "abcAB -\u00e9\u00c9Ii\u0130\u0131\u5e33";
+
+    @Test
+    public void sameAsAccountsMap() {
+        check(new Random(24));
+    }
+
+    @Test
+    public void sameAsAccountsMapInTurkish() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            check(new Random(25));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void caseDuplicates() {
+        AccountsMap accounts = AccountsMapTest.map("Foo", "foo", "FOO ", "bar");
+        CompactAccountsMap compact = CompactAccountsMap.of(accounts);
+        assertEquals(accounts.getKeyLower("foo"), compact.getKeyLower("foo"));
+        // the first duplicate in the range
+        assertEquals("foo", ((CompactAccountsMap) compact.tailMap("a")).getKeyLower("FOO"));
+        assertEquals("FOO ", ((CompactAccountsMap) compact.headMap("Foo")).getKeyLower("foo"));
+        assertNull(((CompactAccountsMap) compact.headMap("FOO ")).getKeyLower("foo"));
+    }
+
+    // ----------------------------------------------------
+
+    private static void check(Random random) {
+        AccountsMap accounts = new AccountsMap();
+        for (int i = 0; i < 300; i++) {
+            Account a = new Account();
+            // short names without suffix, to get case duplicates
+            a.name = i < 100 ? randomString(random, 1, 3) : randomString(random, 1, 8) + i;
+            a.pseudo = randomString(random, 0, 6);
+            a.email = randomString(random, 0, 6);
+            a.notes = randomString(random, 0, 30) + (random.nextBoolean() ? "\n" + randomString(random, 0, 5) : "");
+            a.setPassword(random.nextInt(10) == 0 ? null : randomString(random, 0, 10));
+            a.creationDate = random.nextInt(5) == 0 ? null : String.format("201%d-0%d-10T10:00", random.nextInt(9), 1 + random.nextInt(9));
+            a.modificationDate = random.nextInt(5) == 0 ? "" : String.format("201%d-0%d-10T10:00", random.nextInt(9), 1 + random.nextInt(9));
+            accounts.put(a.name, a);
+        }//end for
+        CompactAccountsMap compact = CompactAccountsMap.of(accounts);
+
+        // fields and order
+        assertSameMap(accounts, compact);
+        assertEquals(accounts.keys(), compact.keys());
+        assertEquals(accounts.firstKey(), compact.firstKey());
+        assertEquals(accounts.lastKey(), compact.lastKey());
+        assertFalse(compact.containsKey("missing"));
+        assertNull(compact.get("missing"));
+
+        List<String> keys = accounts.keys();
+        for (int i = 0; i < 400; i++) {
+            String[] terms = AccountQueryTest.randomQuery(random);
+            assertEquals(Arrays.toString(terms), accounts.find(terms), compact.find(terms));
+
+            String key = keys.get(random.nextInt(keys.size()));
+            String typed = variant(random, key);
+            assertEquals(typed, accounts.getKeyLower(typed), compact.getKeyLower(typed));
+            assertEquals(typed, accounts.containsKeyLower(typed), compact.containsKeyLower(typed));
+
+            int distance = random.nextInt(4);
+            String typo = typo(random, key);
+            assertEquals(typo, accounts.closestNames(typo, distance, 5), compact.closestNames(typo, distance, 5));
+        }//end for
+
+        // sub maps: bounds on keys and between keys
+        for (int i = 0; i < 10; i++) {
+            String from = random.nextBoolean() ? keys.get(random.nextInt(keys.size())) : randomString(random, 1, 3);
+            String to = random.nextBoolean() ? keys.get(random.nextInt(keys.size())) : randomString(random, 1, 3);
+            if (from.compareTo(to) > 0) {
+                String tmp = from;
+                from = to;
+                to = tmp;
+            }
+            checkSubMap(accounts.subMap(from, to), compact.subMap(from, to), random);
+            checkSubMap(accounts.headMap(to), compact.headMap(to), random);
+            checkSubMap(accounts.tailMap(from), compact.tailMap(from), random);
+            // nested
+            checkSubMap(accounts.tailMap(from).headMap(to), compact.tailMap(from).headMap(to), random);
+        }//end for
+    }
+
+    private static void checkSubMap(SortedMap<String, Account> expected, SortedMap<String, Account> actual, Random random) {
+        assertSameMap(expected, actual);
+        CompactAccountsMap compact = (CompactAccountsMap) actual;
+        List<String> keys = new ArrayList<>(expected.keySet());
+        if (keys.isEmpty()) return;
+
+        String[] terms = AccountQueryTest.randomQuery(random);
+        AccountQuery query = AccountQuery.parse(terms);
+        List<String> found = expected.values().stream().filter(query).map(a -> a.name).collect(Collectors.toList());
+        assertEquals(Arrays.toString(terms), found, compact.find(terms));
+
+        String typed = variant(random, keys.get(random.nextInt(keys.size())));
+        String normalized = AccountsMap.normalize(typed);
+        String first = keys.stream().filter(k -> AccountsMap.normalize(k).equals(normalized)).findFirst().orElse(null);
+        assertEquals(typed, first, compact.getKeyLower(typed));
+    }
+
+    private static void assertSameMap(SortedMap<String, Account> expected, SortedMap<String, Account> actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+        List<Account> values = new ArrayList<>(actual.values());
+        int i = 0;
+        for (Map.Entry<String, Account> entry : expected.entrySet()) {
+            Account e = entry.getValue(), a = actual.get(entry.getKey());
+            assertFields(e, a);
+            assertFields(e, values.get(i++));
+        }//end for
+        if (!expected.isEmpty()) {
+            assertEquals(expected.firstKey(), actual.firstKey());
+            assertEquals(expected.lastKey(), actual.lastKey());
+        }
+    }
+
+    private static void assertFields(Account expected, Account actual) {
+        assertNotNull(expected.name, actual);
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.pseudo, actual.pseudo);
+        assertEquals(expected.email, actual.email);
+        assertEquals(expected.notes, actual.notes);
+        assertArrayEquals(expected.name, expected.getSealedPassword(), actual.getSealedPassword());
+        assertEquals(expected.creationDate, actual.creationDate);
+        assertEquals(expected.modificationDate, actual.modificationDate);
+    }
+
+    /**
+     * @return the name with another case and whitespaces, or another name
+     */
+    private static String variant(Random random, String name) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return name.toUpperCase();
+            case 1:
+                return " " + name.toLowerCase() + "  ";
+            case 2:
+                return randomString(random, 1, 3);
+            default:
+                return name;
+        }
+    }
+
+    /**
+     * @return the name with up to three edits
+     */
+    private static String typo(Random random, String name) {
+        StringBuilder typo = new StringBuilder(name);
+        for (int edits = random.nextInt(4); edits > 0; edits--) {
+            int i = random.nextInt(typo.length() + 1);
+            char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            if (random.nextBoolean() || i == typo.length()) {
+                typo.insert(i, c);
+            } else if (random.nextBoolean()) {
+                typo.setCharAt(i, c);
+            } else {
+                typo.deleteCharAt(i);
+            }
+        }//end for
+        return typo.toString();
+    }
+
+    private static String randomString(Random random, int min, int max) {
+        char[] chars = new char[min + random.nextInt(max - min + 1)];
+        for (int i = 0; i < chars.length; i++) chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        return new String(chars);
+    }
+}
@@ -0,0 +1,139 @@
+package ch.derlin.easycmd.accounts;
+
+import ch.derlin.easycmd.doc.LevenshteinDistance;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static ch.derlin.easycmd.accounts.AccountsJournalTest.account;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the "did you mean" suggestions of the {@link NameIndex} with a scan of every name.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class NameIndexTest {
+
+    // with case and whitespace duplicates
+    private static final String ALPHABET = "abcAB -\u00e9";
+
+    @Test
+    public void closestNamesIsTheScan() {
+        Random random = new Random(20);
+        AccountsMap indexed = new AccountsMap(), scanned = new AccountsMap();
+        for (int i = 0; i < 300; i++) {
+            // many names shorter than the number of segments
+            String name = i < 100 ? randomString(random, 0, 2) : randomString(random, 3, 10);
+            indexed.put(name, account(name));
+            scanned.put(name, account(name));
+        }//end for
+        // built now: the changes below go through add and remove
+        indexed.closestNames("", 0, 0);
+
+        int matched = 0;
+        for (int i = 0; i < 3000; i++) {
+            List<String> keys = scanned.keys();
+            String query = random.nextInt(4) == 0 ? randomString(random, 0, 4) : typo(random, keys.get(random.nextInt(keys.size())));
+            int distance = random.nextInt(AccountsMap.SUGGESTION_DISTANCE + 1);
+            int limit = random.nextBoolean() ? AccountsMap.SUGGESTION_LIMIT : Integer.MAX_VALUE;
+            List<String> expected = scanned.closestNamesOnce(query, distance, limit);
+            assertEquals("'" + query + "' " + distance, expected, indexed.closestNames(query, distance, limit));
+            matched += expected.size();
+
+            // remove a name, put another one or put the same one again
+            String key = keys.get(random.nextInt(keys.size()));
+            switch (random.nextInt(4)) {
+                case 0:
+                    indexed.remove(key);
+                    scanned.remove(key);
+                    break;
+                case 1:
+                case 2:
+                    String name = randomString(random, 0, 6);
+                    indexed.put(name, account(name));
+                    scanned.put(name, account(name));
+                    break;
+                default:
+                    indexed.put(key, account(key));
+                    scanned.put(key, account(key));
+            }
+        }//end for
+        // the comparison is not only on empty results
+        assertTrue(matched > 3000);
+    }
+
+    @Test
+    public void shortNames() {
+        List<String> queries = Arrays.asList("", "a", "b", "ab", "c", "ac", "abc", "abcd", "dcba", "abcde");
+        for (int maxDistance = 0; maxDistance <= 3; maxDistance++) {
+            NameIndex index = new NameIndex(maxDistance);
+            List<String> keys = new ArrayList<>(Arrays.asList("", "a", "B", "ab", "ba", "abc", "b c", "abcd"));
+            for (String key : keys) index.add(key);
+            assertClosest(index, keys, queries);
+
+            // the empty segments of the removed names are gone too
+            for (String key : Arrays.asList("", "a", "ab")) {
+                index.remove(key);
+                keys.remove(key);
+            }//end for
+            assertClosest(index, keys, queries);
+        }//end for
+    }
+
+    // ----------------------------------------------------
+
+    private static void assertClosest(NameIndex index, List<String> keys, List<String> queries) {
+        for (String query : queries) {
+            for (int distance = 0; distance <= index.getMaxDistance(); distance++) {
+                assertEquals(query + " " + distance + "/" + index.getMaxDistance(),
+                        scan(keys, query, distance), index.closest(query, distance, Integer.MAX_VALUE));
+            }//end for
+        }//end for
+    }
+
+    // the keys within the distance of the normalized query, closest first, then in key order
+    private static List<String> scan(List<String> keys, String query, int distance) {
+        List<String> found = new ArrayList<>();
+        for (int d = 0; d <= distance; d++) {
+            List<String> atDistance = new ArrayList<>();
+            for (String key : keys) {
+                if (LevenshteinDistance.getDistance(query, AccountsMap.normalize(key)) == d) atDistance.add(key);
+            }//end for
+            Collections.sort(atDistance);
+            found.addAll(atDistance);
+        }//end for
+        return found;
+    }
+
+    /**
+     * @return the name with up to three edits
+     */
+    private static String typo(Random random, String name) {
+        StringBuilder typo = new StringBuilder(name);
+        for (int edits = random.nextInt(4); edits > 0; edits--) {
+            int i = random.nextInt(typo.length() + 1);
+            char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            if (random.nextBoolean() || i == typo.length()) {
+                typo.insert(i, c);
+            } else if (random.nextBoolean()) {
+                typo.setCharAt(i, c);
+            } else {
+                typo.deleteCharAt(i);
+            }
+        }//end for
+        return typo.toString();
+    }
+
+    private static String randomString(Random random, int min, int max) {
+        char[] chars = new char[min + random.nextInt(max - min + 1)];
+        for (int i = 0; i < chars.length; i++) chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        return new String(chars);
+    }
+}
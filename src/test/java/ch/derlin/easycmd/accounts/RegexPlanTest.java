@@ -0,0 +1,182 @@
+package ch.derlin.easycmd.accounts;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class RegexPlanTest {
+
+    private static final String ALPHABET = "abcdAB.-_ 1\u00e9";
+
+    @Test
+    public void literals() {
+        assertLiterals("abc.*def", "abc", "def");
+        assertLiterals(".*BaNk.*", "bank");
+        assertLiterals("ab(c|d)ef", "ab", "ef");
+        assertLiterals("abc?d", "ab", "d");
+        assertLiterals("(abc)?xyz", "xyz");
+        assertLiterals("(?:abc)+x", "abc", "x");
+        assertLiterals("a[bc]d\\.e", "a", "d.e");
+        assertLiterals("ab{0,2}cd", "a", "cd");
+        assertLiterals("(?=abc)abd", "abd");
+        assertLiterals("abc|def");
+        assertLiterals("x(?i)yz");
+        assertLiterals("\\Qabc\\E");
+        assertLiterals("a\\1");
+        assertLiterals("caf\u00e9", "caf");
+    }
+
+    @Test
+    public void findRIsTheFullScan() {
+        Random random = new Random(22);
+        AccountsMap accounts = randomAccounts(random, 200);
+        int matched = 0;
+        for (int i = 0; i < 500; i++) {
+            matched += check(accounts, randomRegex(random));
+        }//end for
+        // the comparison is not only on empty results
+        assertTrue(matched > 150);
+    }
+
+    @Test
+    public void findRIsTheFullScanInTurkish() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            Random random = new Random(23);
+            // the lowercased fields are cached: build the accounts in this locale
+            AccountsMap accounts = randomAccounts(random, 100);
+            for (String name : new String[]{"DIGITAL", "digital", "d\u0131g\u0131tal", "D\u0130G\u0130TAL"}) {
+                accounts.put(name, AccountsJournalTest.account(name));
+            }//end for
+            // the plans are cached: a leading ^ keeps the regexes out of the other test
+            check(accounts, "^.*digital.*");
+            check(accounts, "^.*DIGITAL.*");
+            check(accounts, "^.*IGI.*");
+            for (int i = 0; i < 300; i++) {
+                check(accounts, "^" + randomRegex(random).replace('b', 'i').replace('B', 'I'));
+            }//end for
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    // ----------------------------------------------------
+
+    /**
+     * Compare findR with a brute-force scan, and check that the literals reject no matching account.
+     *
+     * @return the number of accounts matched
+     */
+    private static int check(AccountsMap accounts, String regex) {
+        Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        RegexPlan plan = RegexPlan.of(regex);
+        List<String> expected = new ArrayList<>();
+        for (Account a : accounts.values()) {
+            if (a.matches(pattern)) {
+                expected.add(a.name);
+                assertTrue(regex + " " + Arrays.toString(plan.getLiterals()) + " rejects " + a, plan.mayMatch(a));
+            }
+        }//end for
+        assertEquals(regex + " " + Arrays.toString(plan.getLiterals()), expected, accounts.findR(regex));
+        return expected.size();
+    }
+
+    private static void assertLiterals(String regex, String... literals) {
+        assertEquals(regex, Arrays.asList(literals), Arrays.asList(RegexPlan.of(regex).getLiterals()));
+    }
+
+    static AccountsMap randomAccounts(Random random, int count) {
+        AccountsMap accounts = new AccountsMap();
+        for (int i = 0; i < count; i++) {
+            Account a = new Account();
+            a.name = randomString(random, 1, 6) + i;
+            a.pseudo = randomString(random, 0, 8);
+            a.email = randomString(random, 0, 4) + "@" + randomString(random, 0, 4);
+            a.notes = randomString(random, 0, 20);
+            accounts.put(a.name, a);
+        }//end for
+        return accounts;
+    }
+
+    private static String randomString(Random random, int min, int max) {
+        char[] chars = new char[min + random.nextInt(max - min + 1)];
+        for (int i = 0; i < chars.length; i++) chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        return new String(chars);
+    }
+
+    /**
+     * @return a regex made of literals, classes, groups, alternations and quantifiers, often within .*;
+     * the groups with quantifiers inside are not quantified, to keep the backtracking of the scan short
+     */
+    private static String randomRegex(Random random) {
+        StringBuilder regex = new StringBuilder();
+        if (random.nextInt(4) > 0) regex.append(".*");
+        appendSequence(random, regex, 0);
+        if (random.nextInt(4) > 0) regex.append(".*");
+        return regex.toString();
+    }
+
+    /**
+     * @return true if a quantifier was appended
+     */
+    private static boolean appendSequence(Random random, StringBuilder regex, int depth) {
+        boolean quantified = false;
+        int atoms = 1 + random.nextInt(5);
+        for (int i = 0; i < atoms; i++) {
+            boolean nested = false;
+            switch (random.nextInt(depth < 2 ? 12 : 9)) {
+                case 0:
+                    regex.append('.');
+                    break;
+                case 1:
+                    regex.append(random.nextBoolean() ? "[ab]" : random.nextBoolean() ? "[^a]" : "[a-c]");
+                    break;
+                case 2:
+                    regex.append(random.nextBoolean() ? "\\." : random.nextBoolean() ? "\\w" : "\\d");
+                    break;
+                case 9:
+                    regex.append("(");
+                    nested = appendSequence(random, regex, depth + 1);
+                    regex.append(")");
+                    break;
+                case 10:
+                    regex.append(random.nextBoolean() ? "(?:" : "(?=");
+                    nested = appendSequence(random, regex, depth + 1);
+                    regex.append(")");
+                    break;
+                case 11:
+                    regex.append("(?:");
+                    nested = appendSequence(random, regex, depth + 1);
+                    regex.append("|");
+                    nested |= appendSequence(random, regex, depth + 1);
+                    regex.append(")");
+                    break;
+                default:
+                    regex.append("abcdAB".charAt(random.nextInt(6)));
+            }
+            quantified |= nested;
+            // a quantified group with quantifiers inside can backtrack for minutes
+            if (nested) continue;
+            String[] quantifiers = {"?", "*", "+", "{0,2}", "{1,2}", "+?"};
+            int q = random.nextInt(14);
+            if (q < quantifiers.length) {
+                regex.append(quantifiers[q]);
+                quantified = true;
+            }
+        }//end for
+        return quantified;
+    }
+}
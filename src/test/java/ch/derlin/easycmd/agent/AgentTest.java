@@ -0,0 +1,227 @@
+package ch.derlin.easycmd.agent;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import ch.derlin.easycmd.crypto.Kdf;
+import ch.derlin.easycmd.crypto.SessionKey;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * A local agent, answering on the loopback interface.
+ * <p>
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class AgentTest {
+
+    private static final String PASSWORD = "pw";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String filepath;
+    private Agent agent;
+    private Thread server;
+
+    @Before
+    public void setup() throws Exception {
+        filepath = folder.getRoot().toPath().resolve("vault").toString();
+        save("my bank", "mail", "shop");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (agent != null) agent.close();
+        if (server != null) server.join(5000);
+    }
+
+    @Test
+    public void pingLockAndUnlock() throws Exception {
+        start(Agent.DEFAULT_IDLE_TIMEOUT);
+        try (AgentClient client = new AgentClient(filepath)) {
+            JsonObject pong = client.send("ping");
+            assertTrue(AgentClient.is(pong, Agent.OK));
+            assertFalse(pong.get("locked").getAsBoolean());
+
+            assertTrue(AgentClient.is(client.send("lock"), Agent.OK));
+            assertTrue(client.send("ping").get("locked").getAsBoolean());
+            assertTrue(AgentClient.is(client.send("find", "bank"), Agent.LOCKED));
+
+            JsonObject wrong = client.unlock("not the password");
+            assertTrue(AgentClient.is(wrong, Agent.ERROR));
+            assertEquals("wrong credentials", wrong.get("message").getAsString());
+            assertTrue(AgentClient.is(client.send("get", "pass", "mail"), Agent.LOCKED));
+
+            assertTrue(AgentClient.is(client.unlock(PASSWORD), Agent.OK));
+            assertEquals("mail-pass", client.send("get", "pass", "mail").get("value").getAsString());
+        }
+    }
+
+    @Test
+    public void findShowAndGet() throws Exception {
+        start(Agent.DEFAULT_IDLE_TIMEOUT);
+        try (AgentClient client = new AgentClient(filepath)) {
+            JsonObject found = client.send("find", "user");
+            assertEquals(3, found.get("total").getAsInt());
+            assertEquals("mail", found.getAsJsonArray("results").get(0).getAsString());
+
+            JsonObject shown = client.send("show", "MY", "BANK");
+            assertTrue(AgentClient.is(shown, Agent.OK));
+            JsonObject account = shown.getAsJsonObject("account");
+            assertEquals("my bank-user", account.get("pseudo").getAsString());
+            assertFalse("the password is never shown", account.has("password"));
+
+            assertEquals("shop-pass", client.send("get", "pass", "sho").get("value").getAsString());
+            assertEquals("mail-user", client.send("get", "pseudo", "mail").get("value").getAsString());
+
+            JsonObject ambiguous = client.send("get", "pass", "user");
+            assertTrue(AgentClient.is(ambiguous, Agent.ERROR));
+            assertEquals(3, ambiguous.getAsJsonArray("results").size());
+            JsonObject none = client.send("show", "mial");
+            assertEquals("not match.", none.get("message").getAsString());
+            assertEquals("mail", none.getAsJsonArray("suggestions").get(0).getAsString());
+            assertTrue(AgentClient.is(client.send("get", "color", "mail"), Agent.ERROR));
+            assertTrue(AgentClient.is(client.send("fly"), Agent.ERROR));
+
+            // reloaded when the vault changes on disk
+            save("my bank", "mail", "shop", "travel");
+            assertEquals(4, client.send("find").get("total").getAsInt());
+        }
+    }
+
+    @Test
+    public void requestsWithoutTheTokenAreRejected() throws Exception {
+        start(Agent.DEFAULT_IDLE_TIMEOUT);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), agent.getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            for (String request : new String[]{
+                    "{\"token\": \"wrong\", \"command\": \"get\", \"args\": [\"pass\", \"mail\"]}",
+                    "{\"command\": \"stop\"}",
+                    "not json"}) {
+                out.write(request + "\n");
+                out.flush();
+                JsonObject response = new JsonParser().parse(in.readLine()).getAsJsonObject();
+                assertEquals(request, Agent.ERROR, response.get("status").getAsString());
+                assertFalse(request, response.has("value"));
+            }//end for
+        }
+        try (AgentClient client = new AgentClient(filepath)) {
+            assertTrue("still running", AgentClient.is(client.send("ping"), Agent.OK));
+        }
+
+        Agent.Request request = new Agent.Request();
+        request.command = "lock";
+        assertEquals(Agent.ERROR, agent.answer(null).get("status"));
+        assertEquals(Agent.ERROR, agent.answer(request).get("status"));
+        request.token = "";
+        assertEquals(Agent.ERROR, agent.answer(request).get("status"));
+        assertEquals(Agent.OK, agent.answer(ping()).get("status"));
+        assertEquals(false, agent.answer(ping()).get("locked"));
+    }
+
+    @Test
+    public void locksItselfWhenIdle() throws Exception {
+        start(100);
+        try (AgentClient client = new AgentClient(filepath)) {
+            assertTrue(AgentClient.is(client.send("find"), Agent.OK));
+            // any request counts as a use; the idle check runs every second
+            Thread.sleep(2500);
+            assertTrue(AgentClient.is(client.send("find"), Agent.LOCKED));
+            assertTrue(AgentClient.is(client.unlock(PASSWORD), Agent.OK));
+            assertTrue(AgentClient.is(client.send("find"), Agent.OK));
+        }
+    }
+
+    @Test
+    public void concurrentClients() throws Exception {
+        start(Agent.DEFAULT_IDLE_TIMEOUT);
+        int clients = 8, requests = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Integer>> futures = new ArrayList<>();
+        CountDownLatch ready = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            String name = new String[]{"my bank", "mail", "shop"}[c % 3];
+            futures.add(pool.submit(() -> {
+                int answered = 0;
+                try (AgentClient client = new AgentClient(filepath)) {
+                    ready.countDown();
+                    ready.await();
+                    for (int i = 0; i < requests; i++) {
+                        JsonObject response = client.send("get", "pass", name);
+                        assertEquals(response.toString(), name + "-pass", response.get("value").getAsString());
+                        answered++;
+                    }//end for
+                }
+                return answered;
+            }));
+        }//end for
+        pool.shutdown();
+        for (Future<Integer> future : futures) assertEquals(requests, (int) future.get(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopClosesTheAgent() throws Exception {
+        start(Agent.DEFAULT_IDLE_TIMEOUT);
+        assertTrue(new File(filepath + Agent.EXTENSION).exists());
+        try (AgentClient client = new AgentClient(filepath)) {
+            assertTrue(AgentClient.is(client.send("stop"), Agent.OK));
+        }
+        server.join(5000);
+        assertFalse(server.isAlive());
+        assertFalse(new File(filepath + Agent.EXTENSION).exists());
+    }
+
+    // ----------------------------------------------------
+
+    private void start(long idleTimeout) throws Exception {
+        agent = new Agent(filepath, PASSWORD, idleTimeout);
+        server = new Thread(() -> {
+            try {
+                agent.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "agent-test");
+        server.start();
+    }
+
+    // a ping with the token of the agent file
+    private Agent.Request ping() throws IOException {
+        Agent.Request request = new Agent.Request();
+        request.command = "ping";
+        request.token = java.nio.file.Files.readAllLines(new File(filepath + Agent.EXTENSION).toPath()).get(1);
+        return request;
+    }
+
+    private void save(String... names) throws IOException {
+        List<Account> accounts = new ArrayList<>();
+        for (String name : names) {
+            Account a = new Account();
+            a.name = name;
+            a.pseudo = name + "-user";
+            a.setPassword(name + "-pass");
+            accounts.add(a);
+        }//end for
+        AccountsMap.toEncryptedFile(filepath, new SessionKey(PASSWORD, Kdf.PBKDF2_SHA256, 10_000),
+                Collections.unmodifiableList(accounts));
+    }
+}
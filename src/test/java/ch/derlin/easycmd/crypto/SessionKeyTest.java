@@ -0,0 +1,89 @@
+package ch.derlin.easycmd.crypto;
+
+import ch.derlin.easycmd.accounts.Account;
+import ch.derlin.easycmd.accounts.AccountsMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class SessionKeyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void headersOutOfTheWorkFactorBoundsAreRejected() throws Exception {
+        Kdf kdf = Kdf.PBKDF2_SHA256;
+        assertEquals(kdf.minWorkFactor(), read(header(kdf.minWorkFactor())).getWorkFactor());
+        assertEquals(kdf.maxWorkFactor(), read(header(kdf.maxWorkFactor())).getWorkFactor());
+        for (int workFactor : new int[]{0, 1, kdf.minWorkFactor() - 1, kdf.maxWorkFactor() + 1, Integer.MAX_VALUE, -1}) {
+            try {
+                read(header(workFactor));
+                fail("accepted a work factor of " + workFactor);
+            } catch (IOException e) {
+                // expected
+            }
+        }//end for
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void newKeysOutOfTheWorkFactorBoundsAreRejected() {
+        new SessionKey("pw", Kdf.PBKDF2_SHA256, 1);
+    }
+
+    @Test
+    public void savesUseTheConfiguredWorkFactor() throws Exception {
+        String filepath = folder.newFile().getPath();
+        Account account = new Account();
+        account.name = "bank";
+        AccountsMap.toEncryptedFile(filepath, new SessionKey("pw", Kdf.PBKDF2_SHA256, 2_000),
+                Collections.singletonList(account));
+        assertEquals(2_000, headerOf(filepath).getWorkFactor());
+
+        // reopened and saved with another configuration
+        SessionKey key = new SessionKey("pw", Kdf.PBKDF2_SHA256, 3_000);
+        AccountsMap accounts = AccountsMap.fromEncryptedFile(filepath, key);
+        assertEquals(2_000, headerOf(filepath).getWorkFactor());
+        AccountsMap.toEncryptedFile(filepath, key, accounts.values());
+        assertEquals(3_000, headerOf(filepath).getWorkFactor());
+        assertEquals(accounts.keys(), AccountsMap.fromEncryptedFile(filepath, key).keys());
+
+        // same configuration: the salt is kept, no new derivation
+        VaultHeader before = headerOf(filepath);
+        key = new SessionKey("pw", Kdf.PBKDF2_SHA256, 3_000);
+        AccountsMap.fromEncryptedFile(filepath, key);
+        assertTrue(before.sameKeyAs(key.newHeader(0)));
+    }
+
+    // ----------------------------------------------------
+
+    private static byte[] header(int workFactor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new VaultHeader(0, Kdf.PBKDF2_SHA256.id(), workFactor, new byte[16], new byte[16]).write(out);
+        return out.toByteArray();
+    }
+
+    private static VaultHeader read(byte[] header) throws IOException {
+        return VaultHeader.read(new ByteArrayInputStream(header));
+    }
+
+    private static VaultHeader headerOf(String filepath) throws IOException {
+        try (InputStream in = new FileInputStream(filepath)) {
+            return VaultHeader.read(in);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ch.derlin.easycmd.doc;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class CmdDocTest {
+
+    @Test
+    public void compiledIsTheJson() {
+        CmdDoc compiled = new CmdDoc(), json = new CmdDoc(CmdDoc.class.getResourceAsStream("/man.json"));
+        assertEquals(json.help(), compiled.help());
+        assertEquals(json.man(), compiled.man());
+        for (String name : new String[]{"find", "show", "missing", ""}) {
+            assertEquals(String.valueOf(json.get(name)), String.valueOf(compiled.get(name)));
+        }//end for
+    }
+
+    @Test
+    public void betterMatchIsTheClosest() {
+        CmdDoc compiled = new CmdDoc(), json = new CmdDoc(CmdDoc.class.getResourceAsStream("/man.json"));
+        Random random = new Random(21);
+        String[] names = CmdIndex.NAMES;
+        for (int i = 0; i < 5000; i++) {
+            String typo = typo(random, names[random.nextInt(names.length)]);
+            for (int threshold = 0; threshold <= 4; threshold++) {
+                CmdDoc.CmdDescription expected = closest(json, typo, threshold);
+                String message = typo + " threshold " + threshold;
+                // the deletion neighbourhood up to 2, the scan above
+                assertEquals(message, String.valueOf(expected), String.valueOf(compiled.betterMatch(typo, threshold)));
+                assertEquals(message, String.valueOf(expected), String.valueOf(json.betterMatch(typo, threshold)));
+            }//end for
+        }//end for
+        assertEquals("show", compiled.betterMatch("show").getName());
+    }
+
+    // ----------------------------------------------------
+
+    // the first documented command at the smallest distance, if below the threshold
+    private static CmdDoc.CmdDescription closest(CmdDoc doc, String cmd, int threshold) {
+        CmdDoc.CmdDescription best = null;
+        int minDist = threshold;
+        for (String name : CmdIndex.NAMES) {
+            int distance = LevenshteinDistance.getDistance(name, cmd);
+            if (distance < minDist) {
+                minDist = distance;
+                best = doc.get(name);
+            }
+        }//end for
+        return best;
+    }
+
+    /**
+     * @return the name with up to two edits
+     */
+    private static String typo(Random random, String name) {
+        StringBuilder typo = new StringBuilder(name);
+        for (int edits = random.nextInt(3); edits > 0; edits--) {
+            int i = random.nextInt(typo.length() + 1);
+            char c = (char) ('a' + random.nextInt(26));
+            if (random.nextBoolean() || i == typo.length()) {
+                typo.insert(i, c);
+            } else if (random.nextBoolean()) {
+                typo.setCharAt(i, c);
+            } else {
+                typo.deleteCharAt(i);
+            }
+        }//end for
+        return typo.toString();
+    }
+}
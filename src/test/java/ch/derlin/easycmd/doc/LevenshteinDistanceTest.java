@@ -0,0 +1,53 @@
+package ch.derlin.easycmd.doc;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * date: 17.10.26
+ *
+ * @author Lin
+ */
+public class LevenshteinDistanceTest {
+
+    @Test
+    public void boundedIsTheDistanceUpToMax() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            // a small alphabet, so that the strings share characters
+            String a = randomString(random), b = randomString(random);
+            int distance = LevenshteinDistance.getDistance(a, b);
+            for (int max = 0; max <= Math.max(a.length(), b.length()) + 2; max++) {
+                int expected = distance <= max ? distance : max + 1;
+                assertEquals(String.format("'%s' '%s' max %d", a, b, max),
+                        expected, LevenshteinDistance.getDistance(a, b, max));
+            }//end for
+        }//end for
+    }
+
+    @Test
+    public void boundedEdgeCases() {
+        assertEquals(0, LevenshteinDistance.getDistance("", "", 0));
+        assertEquals(0, LevenshteinDistance.getDistance("abc", "abc", 0));
+        assertEquals(1, LevenshteinDistance.getDistance("abc", "abd", 0));
+        assertEquals(1, LevenshteinDistance.getDistance("", "a", 0));
+        assertEquals(3, LevenshteinDistance.getDistance("", "abc", 100));
+        assertEquals(3, LevenshteinDistance.getDistance("abcde", "bgdfe", 100));
+        assertEquals(3, LevenshteinDistance.getDistance("abcde", "bgdfe", 2));
+        // the row buffers grow with a longer string
+        String longer = "abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz";
+        assertEquals(1, LevenshteinDistance.getDistance(longer, longer + "!", 1));
+        assertEquals(1, LevenshteinDistance.getDistance("ab", "abc", 5));
+    }
+
+    // ----------------------------------------------------
+
+    private static String randomString(Random random) {
+        char[] chars = new char[random.nextInt(12)];
+        for (int i = 0; i < chars.length; i++) chars[i] = (char) ('a' + random.nextInt(4));
+        return new String(chars);
+    }
+}